@@ -1,7 +1,8 @@
 package org.bitcoin.core;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -9,26 +10,64 @@ public abstract class AddressMessage extends Message {
 
     protected static final long MAX_ADDRESSES = 1000;
     protected List<PeerAddress> addresses;
+    // The number of entries, known even before the addresses are parsed
+    protected int addressCount;
 
     AddressMessage(NetworkParameters params, byte[] payload, int offset, MessageSerializer serializer, int length) throws ProtocolException {
         super(params, payload, offset, serializer, length);
     }
 
+    /** The serializer the entries are parsed with, which determines their wire format. */
+    protected abstract MessageSerializer addressSerializer();
+
+    /**
+     * Walks the entries to find the message length, without creating them.
+     */
     @Override
-    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+    protected void parseLite() throws ProtocolException {
+        final VarInt numAddressesVarInt = readVarInt();
+        int numAddresses = numAddressesVarInt.intValue();
+        // Guard against ultra large messages that will crash us.
+        if (numAddresses > MAX_ADDRESSES)
+            throw new ProtocolException("Address message too large.");
+        int protocolVersion = addressSerializer().getProtocolVersion();
+        length = numAddressesVarInt.getOriginalSizeInBytes();
+        for (int i = 0; i < numAddresses; i++) {
+            int entryLength = PeerAddress.encodedLength(payload, cursor, protocolVersion);
+            cursor += entryLength;
+            length += entryLength;
+        }
+        addressCount = numAddresses;
+    }
+
+    @Override
+    protected void bitcoinSerializeToWriter(PayloadWriter writer) throws IOException {
+        maybeParse();
         if (addresses == null)
             return;
-        stream.write(new VarInt(addresses.size()).encode());
+        writer.writeVarInt(addresses.size());
         for (PeerAddress addr : addresses) {
-            addr.bitcoinSerialize(stream);
+            addr.bitcoinSerialize(writer);
         }
     }
 
+    @Override
+    protected int computeSerializedSize() {
+        maybeParse();
+        if (addresses == null)
+            return 0;
+        int size = VarInt.sizeOf(addresses.size());
+        for (PeerAddress addr : addresses)
+            size += addr.knownSerializedSize();
+        return size;
+    }
+
     public abstract void addAddress(PeerAddress address);
 
     public void removeAddress(int index) {
         unCache();
         PeerAddress address = addresses.remove(index);
+        addressCount = addresses.size();
         address.setParent(null);
         length = UNKNOWN_LENGTH;
     }
@@ -38,6 +77,45 @@ public abstract class AddressMessage extends Message {
      * safely modified.
      */
     public List<PeerAddress> getAddresses() {
+        maybeParse();
         return Collections.unmodifiableList(addresses);
     }
+
+    /**
+     * Returns the addresses packed into {@link CompactPeerAddress}es, for keeping them around. While the message still
+     * holds its payload they are read straight from it in the format of {@link #addressSerializer()}, without creating
+     * any {@link PeerAddress}es, and entries of networks {@link PeerAddress} can't represent, such as I2P, are kept.
+     * Otherwise those entries are left out. Entries of networks unknown to BIP 155 are always left out.
+     */
+    public List<CompactPeerAddress> getCompactAddresses() throws ProtocolException {
+        if (payload != null) {
+            PayloadReader reader = new PayloadReader(ByteBuffer.wrap(payload, offset, payload.length - offset));
+            int numAddresses = reader.readVarInt().intValue();
+            if (numAddresses > MAX_ADDRESSES)
+                throw new ProtocolException("Address message too large.");
+            int protocolVersion = addressSerializer().getProtocolVersion();
+            List<CompactPeerAddress> compact = new ArrayList<>(numAddresses);
+            for (int i = 0; i < numAddresses; i++) {
+                CompactPeerAddress address = CompactPeerAddress.read(reader, protocolVersion);
+                if (address != null)
+                    compact.add(address);
+            }
+            return compact;
+        }
+        maybeParse();
+        List<CompactPeerAddress> compact = new ArrayList<>(addresses.size());
+        for (PeerAddress addr : addresses) {
+            // Entries of networks PeerAddress doesn't know have nothing left to pack
+            if (addr.isKnownNetwork())
+                compact.add(addr.toCompact());
+        }
+        return compact;
+    }
+
+    /**
+     * Returns the number of addresses, without parsing them if that hasn't happened yet.
+     */
+    public int getAddressCount() {
+        return parsed ? addresses.size() : addressCount;
+    }
 }
@@ -45,6 +45,11 @@ public class AddressV1Message extends AddressMessage {
         super(params, payload, 0, params.getDefaultSerializer(), UNKNOWN_LENGTH);
     }
 
+    @Override
+    protected MessageSerializer addressSerializer() {
+        return serializer.withProtocolVersion(1);
+    }
+
     @Override
     protected void parse() throws ProtocolException {
         final VarInt numAddressesVarInt = readVarInt();
@@ -53,8 +58,9 @@ public class AddressV1Message extends AddressMessage {
         if (numAddresses > MAX_ADDRESSES)
             throw new ProtocolException("Address message too large.");
         addresses = new ArrayList<>(numAddresses);
-        MessageSerializer serializer = this.serializer.withProtocolVersion(1);
-        length = numAddressesVarInt.getSizeInBytes();
+        addressCount = numAddresses;
+        MessageSerializer serializer = addressSerializer();
+        length = numAddressesVarInt.getOriginalSizeInBytes();
         for (int i = 0; i < numAddresses; i++) {
             PeerAddress addr = new PeerAddress(params, payload, cursor, this, serializer);
             addresses.add(addr);
@@ -71,11 +77,13 @@ public class AddressV1Message extends AddressMessage {
         unCache();
         address.setParent(this);
         addresses.add(address);
+        addressCount = addresses.size();
         length = UNKNOWN_LENGTH;
     }
 
     @Override
     public String toString() {
+        maybeParse();
         return "addr: " + Utils.SPACE_JOINER.join(addresses);
     }
 }
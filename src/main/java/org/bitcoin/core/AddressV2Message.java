@@ -42,6 +42,11 @@ public class AddressV2Message extends AddressMessage {
         super(params, payload, 0, params.getDefaultSerializer(), UNKNOWN_LENGTH);
     }
 
+    @Override
+    protected MessageSerializer addressSerializer() {
+        return serializer.withProtocolVersion(2);
+    }
+
     @Override
     protected void parse() throws ProtocolException {
         final VarInt numAddressesVarInt = readVarInt();
@@ -50,8 +55,9 @@ public class AddressV2Message extends AddressMessage {
         if (numAddresses > MAX_ADDRESSES)
             throw new ProtocolException("Address message too large.");
         addresses = new ArrayList<>(numAddresses);
-        MessageSerializer serializer = this.serializer.withProtocolVersion(2);
-        length = numAddressesVarInt.getSizeInBytes();
+        addressCount = numAddresses;
+        MessageSerializer serializer = addressSerializer();
+        length = numAddressesVarInt.getOriginalSizeInBytes();
         for (int i = 0; i < numAddresses; i++) {
             PeerAddress addr = new PeerAddress(params, payload, cursor, this, serializer);
             addresses.add(addr);
@@ -68,11 +74,13 @@ public class AddressV2Message extends AddressMessage {
         unCache();
         address.setParent(this);
         addresses.add(address);
+        addressCount = addresses.size();
         length = UNKNOWN_LENGTH;
     }
 
     @Override
     public String toString() {
+        maybeParse();
         return "addrv2: " + Utils.SPACE_JOINER.join(addresses);
     }
 }
@@ -1,18 +1,19 @@
 package org.bitcoin.core;
 
+import com.google.common.primitives.Ints;
 import com.sun.javafx.binding.StringFormatter;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
 import java.util.Objects;
 
+import static com.google.common.base.Preconditions.checkState;
 import static org.bitcoin.core.Utils.HEX;
-import static org.bitcoin.core.Utils.readUint32;
 
 public class BitcoinSerializer extends MessageSerializer{
     private static final int COMMAND_LEN = 12;
@@ -20,17 +21,13 @@ public class BitcoinSerializer extends MessageSerializer{
     private final NetworkParameters params;
     private final int protocolVersion;
     private final boolean parseRetain;
+    private final boolean parseLazy;
+    // The packet magic as it reads from the wire as a big endian int
+    private final int packetMagic;
 
-    private static final Map<Class<? extends Message>, String> names = new HashMap<>();
-    static {
-        names.put(VersionMessage.class, "version");
-        names.put(Ping.class, "ping");
-        names.put(Pong.class, "pong");
-        names.put(SendAddrV2Message.class, "sendaddrv2");
-        names.put(AddressV1Message.class, "addr");
-        names.put(AddressV2Message.class, "addrv2");
+    // Known commands, used to create inbound messages and to name outbound ones
+    private static final CommandRegistry registry = CommandRegistry.DEFAULT;
 
-    }
     /**
      * Constructs a BitcoinSerializer with the given behavior.
      *
@@ -49,20 +46,48 @@ public class BitcoinSerializer extends MessageSerializer{
      * @param parseRetain      retain the backing byte array of a message for fast reserialization.
      */
     public BitcoinSerializer(NetworkParameters params, int protocolVersion, boolean parseRetain) {
+        this(params, protocolVersion, parseRetain, false);
+    }
+
+    /**
+     * Constructs a BitcoinSerializer with the given behavior.
+     *
+     * @param params           networkParams used to create Messages instances and determining packetMagic
+     * @param protocolVersion  the protocol version to use
+     * @param parseRetain      retain the backing byte array of a message for fast reserialization.
+     * @param parseLazy        only check the framing of messages which support it when deserializing, and parse their
+     *                         fields the first time they are accessed.
+     */
+    public BitcoinSerializer(NetworkParameters params, int protocolVersion, boolean parseRetain, boolean parseLazy) {
         this.params = params;
         this.protocolVersion = protocolVersion;
         this.parseRetain = parseRetain;
+        this.parseLazy = parseLazy;
+        this.packetMagic = (int) params.getPacketMagic();
     }
 
     @Override
     public BitcoinSerializer withProtocolVersion(int protocolVersion) {
         return protocolVersion == this.protocolVersion ?
-                this : new BitcoinSerializer(params, protocolVersion, parseRetain);
+                this : new BitcoinSerializer(params, protocolVersion, parseRetain, parseLazy);
+    }
+
+    /**
+     * Returns a serializer which differs from this one only in whether it parses lazily.
+     */
+    public BitcoinSerializer withParseLazy(boolean parseLazy) {
+        return parseLazy == this.parseLazy ?
+                this : new BitcoinSerializer(params, protocolVersion, parseRetain, parseLazy);
+    }
+
+    /** The network parameters messages are created with. */
+    public NetworkParameters getParameters() {
+        return params;
     }
 
     @Override
     public int getProtocolVersion() {
-        return 0;
+        return protocolVersion;
     }
 
     @Override
@@ -81,57 +106,123 @@ public class BitcoinSerializer extends MessageSerializer{
         //
         // Bitcoin Core ignores garbage before the magic header bytes. We have to do the same because
         // sometimes it sends us stuff that isn't part of any message.
+        return deserialize(in, new BitcoinPacketHeader());
+    }
+
+    @Override
+    public Message deserialize(ByteBuffer in, BitcoinPacketHeader header) throws ProtocolException, IOException {
         seekPastMagicBytes(in);
-        BitcoinPacketHeader header = new BitcoinPacketHeader(in);
+        checkPayloadSize(header.decode(in));
         // Now try to read the whole message.
         return deserializePayload(header, in);
     }
 
     @Override
     public BitcoinPacketHeader deserializeHeader(ByteBuffer in) throws ProtocolException, IOException, UnsupportedOperationException {
-        return new BitcoinPacketHeader(in);
+        return checkPayloadSize(new BitcoinPacketHeader(in));
+    }
+
+    @Override
+    public BitcoinPacketHeader deserializeHeader(ByteBuffer in, BitcoinPacketHeader header) throws ProtocolException, IOException, UnsupportedOperationException {
+        return checkPayloadSize(header.decode(in));
+    }
+
+    // Rejects a header announcing more payload than its command allows, before any of the payload is buffered
+    private BitcoinPacketHeader checkPayloadSize(BitcoinPacketHeader header) throws ProtocolException {
+        int limit = registry.maxPayloadSize(header.getCommandHigh(), header.getCommandLow());
+        if (header.getSize() > limit)
+            throw new ProtocolException("Message size too large for '" + header.getCommand() + "': " +
+                    header.getSize() + " > " + limit);
+        return header;
     }
 
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        int size = header.getSize();
+        CommandRegistry.Entry entry = registry.lookup(header.getCommandHigh(), header.getCommandLow());
+        if (entry != null && entry.readerFactory != null) {
+            // Parse straight from the read buffer, skipping the payload copy
+            if (in.remaining() < size)
+                throw new BufferUnderflowException();
+            ByteBuffer payload = in.slice();
+            ((Buffer) payload).limit(size);
+            ((Buffer) in).position(in.position() + size);
+            return deserializePayload(header, entry, null, payload);
+        }
+        byte[] payloadBytes = new byte[size];
+        in.get(payloadBytes, 0, size);
+        return deserializePayload(header, payloadBytes, null);
+    }
+
+    @Override
+    public Message deserializePayload(BitcoinPacketHeader header, SegmentedBuffer payload) throws ProtocolException {
+        if (!payload.isComplete())
+            throw new ProtocolException("Incomplete payload: " + payload.size() + " of " + payload.capacity() + " bytes");
+        CommandRegistry.Entry entry = registry.lookup(header.getCommandHigh(), header.getCommandLow());
+        if (entry != null && entry.readerFactory != null)
+            return deserializePayload(header, entry, payload.getHash(), payload.buffers());
+        byte[] hash = payload.getHash() != null ? payload.getHash() : Sha256Hash.hashTwice(payload.buffers());
+        if (header.getChecksum() != Ints.fromByteArray(hash)) {
+            throw new ProtocolException("Checksum failed to verify, actual " +
+                    HEX.encode(hash) +
+                    " vs " + String.format("%08x", header.getChecksum()));
+        }
+        if (entry == null || entry.factory == null) {
+            // Nothing could parse an unknown payload, so rather than joining up to MAX_SIZE bytes into one array
+            // just to hold on to them, it is dropped with the chunks
+            return new UnknownMessage(params, header.getCommand());
+        }
+        // The remaining message classes parse from a single array, so the chunks are joined once everything has
+        // arrived. Their registered size limits bound that array, see CommandRegistry.
+        return deserializePayload(header, payload.toByteArray(), hash);
+    }
 
+    private Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
+        int size = payloadBytes.length;
         // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
-        if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
-                header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
+        if (hash == null)
+            hash = Sha256Hash.hashTwice(payloadBytes);
+        if (header.getChecksum() != Ints.fromByteArray(hash)) {
 
             throw new ProtocolException("Checksum failed to verify, actual " +
                     HEX.encode(hash) +
-                    " vs " + HEX.encode(header.checksum));
+                    " vs " + String.format("%08x", header.getChecksum()));
         }
 
-        System.out.println("Received {} byte '{}' message: {}" + header.size + "  " + header.command + "  " + HEX.encode(payloadBytes));
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            Message message = makeMessage(header, payloadBytes, hash);
+            if (isParseRetainMode() && message.payload == payloadBytes && message.offset == 0 && message.length == size)
+                message.retainPayloadChecksum(header.getChecksum());
+            return message;
         } catch (Exception e) {
             System.out.println("Error deserializing message " + HEX.encode(payloadBytes) + "\n" + e);
             throw new ProtocolException("deserializePayload error");
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
-        // We use an if ladder rather than reflection because reflection is very slow on Android.
-        if (command.equals("ping")) {
-            return new Ping(params, payloadBytes);
-        } else if (command.equals("pong")) {
-            return new Pong(params, payloadBytes);
-        } else if (command.equals("sendaddrv2")) {
-            return new SendAddrV2Message(params);
-        } else if (command.equals("addr")) {
-            return makeAddressV1Message(payloadBytes, length);
-        } else if (command.equals("addrv2")) {
-            return makeAddressV2Message(payloadBytes, length);
-        } else {
-            return new UnknownMessage(params, command, payloadBytes);
+    // Verifies and parses a payload held in buffers, for commands with a reader factory
+    private Message deserializePayload(BitcoinPacketHeader header, CommandRegistry.Entry entry, byte[] hash, ByteBuffer... payload) throws ProtocolException {
+        if (hash == null)
+            hash = Sha256Hash.hashTwice(payload);
+        if (header.getChecksum() != Ints.fromByteArray(hash)) {
+            throw new ProtocolException("Checksum failed to verify, actual " +
+                    HEX.encode(hash) +
+                    " vs " + String.format("%08x", header.getChecksum()));
         }
+        try {
+            return entry.readerFactory.make(this, new PayloadReader(payload), header.getSize());
+        } catch (Exception e) {
+            System.out.println("Error deserializing '" + entry.command + "' message\n" + e);
+            throw new ProtocolException("deserializePayload error");
+        }
+    }
+
+    private Message makeMessage(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
+        // Dispatch on the raw command bytes, only unknown commands need the String
+        CommandRegistry.Entry entry = registry.lookup(header.getCommandHigh(), header.getCommandLow());
+        if (entry != null && entry.factory != null)
+            return entry.factory.make(this, payloadBytes, header.getSize(), hash);
+        return new UnknownMessage(params, header.getCommand(), payloadBytes);
     }
 
     @Override
@@ -139,6 +230,11 @@ public class BitcoinSerializer extends MessageSerializer{
         return true;
     }
 
+    @Override
+    public boolean isParseLazyMode() {
+        return parseLazy;
+    }
+
     @Override
     public AddressV1Message makeAddressV1Message(byte[] payloadBytes, int length) throws ProtocolException, UnsupportedOperationException {
         return new AddressV1Message(params, payloadBytes, this, length);
@@ -174,43 +270,148 @@ public class BitcoinSerializer extends MessageSerializer{
         return null;
     }
 
+    /**
+     * Moves the position of the buffer to just past the next occurrence of the packet magic, or to its limit if there
+     * is none. When in sync the magic is right at the position and found with a single int compare. Otherwise, while
+     * resynchronizing after garbage, eight bytes at a time are searched for the magic's first byte (SWAR, see
+     * {@link #MAGIC_SCAN_ONES}) and only those candidates are compared against the whole magic.
+     */
     @Override
     public void seekPastMagicBytes(ByteBuffer in) throws BufferUnderflowException {
-        int magicCursor = 3;  // Which byte of the magic we're looking for currently.
-        while (in.hasRemaining()) {
-            byte b = in.get();
-            // We're looking for a run of bytes that is the same as the packet magic but we want to ignore partial
-            // magics that aren't complete. So we keep track of where we're up to with magicCursor.
-            byte expectedByte = (byte)(0xFF & params.getPacketMagic() >>> (magicCursor * 8));
-            if (b == expectedByte) {
-                magicCursor--;
-                if (magicCursor < 0) {
-                    // We found the magic sequence.
+        boolean bigEndian = in.order() == ByteOrder.BIG_ENDIAN;
+        int magic = bigEndian ? packetMagic : Integer.reverseBytes(packetMagic);
+        int pos = in.position();
+        int limit = in.limit();
+        if (limit - pos >= 4 && in.getInt(pos) == magic) {
+            ((Buffer) in).position(pos + 4);
+            return;
+        }
+        // Every byte of the pattern is the magic's first byte, so XORing a word with it zeroes the candidate bytes
+        long pattern = MAGIC_SCAN_ONES * (packetMagic >>> 24);
+        for (; pos + 8 <= limit; pos += 8) {
+            long x = in.getLong(pos) ^ pattern;
+            // Has-zero-byte trick: flags every zero byte, plus possibly some false positives above one
+            long zeros = (x - MAGIC_SCAN_ONES) & ~x & MAGIC_SCAN_HIGHS;
+            while (zeros != 0) {
+                // The byte at the lowest address is the most significant one in big endian order
+                int bit = bigEndian ? 63 - Long.numberOfLeadingZeros(zeros) : Long.numberOfTrailingZeros(zeros);
+                int candidate = pos + (bigEndian ? 7 - (bit >>> 3) : bit >>> 3);
+                if (candidate + 4 <= limit && in.getInt(candidate) == magic) {
+                    ((Buffer) in).position(candidate + 4);
                     return;
-                } else {
-                    // We still have further to go to find the next message.
                 }
-            } else {
-                magicCursor = 3;
+                zeros &= ~(1L << bit);
+            }
+        }
+        for (; pos + 4 <= limit; pos++) {
+            if (in.getInt(pos) == magic) {
+                ((Buffer) in).position(pos + 4);
+                return;
             }
         }
+        ((Buffer) in).position(limit);
     }
 
+    private static final long MAGIC_SCAN_ONES = 0x0101010101010101L;
+    private static final long MAGIC_SCAN_HIGHS = 0x8080808080808080L;
+
     /**
      * Writes message to to the output stream.
      */
     @Override
     public void serialize(Message message, OutputStream out) throws IOException {
-        String name = names.get(message.getClass());
-        if (name == null) {
+        CommandRegistry.Entry entry = registry.lookup(message.getClass());
+        if (entry == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
         byte[] bytes = this.serializeMessage(message);
-        this.serialize(name, bytes, out);
+        // A received message which hasn't changed is relayed with the checksum it arrived with
+        int checksum = message.isRelayable() ? message.getPayloadChecksum() : Ints.fromByteArray(Sha256Hash.hashTwice(bytes));
+        this.serialize(entry.command, bytes, checksum, out);
+    }
+
+    /**
+     * Serializes message, header included, into a single buffer taken from the given pool. The header is written
+     * first, the payload is written in place behind it and the checksum is filled in afterwards, so the payload is
+     * never copied into an intermediate array. A message known to be too large for a pooled buffer (see
+     * {@link Message#serializedSize()}) gets an exactly sized heap buffer instead. For messages which can't tell
+     * their size up front the length is filled in afterwards too, and if they don't fit they spill over into a larger
+     * heap buffer, in which case the pooled one is released straight away. If serializing fails, for example because
+     * the message wrote a different number of bytes than it claimed, the pooled buffer is released before the exception
+     * propagates.
+     *
+     * @return a buffer positioned at the start of the header with the whole message remaining. The caller owns it
+     * and should release it to the pool once it is done with it.
+     */
+    @Override
+    public ByteBuffer serialize(Message message, ByteBufferPool pool) throws IOException {
+        CommandRegistry.Entry entry = registry.lookup(message.getClass());
+        if (entry == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        int size = message.knownSerializedSize();
+        int payloadStart = 4 + BitcoinPacketHeader.HEADER_LENGTH;
+        ByteBuffer pooled = null;
+        ByteBuffer target;
+        if (size != Message.UNKNOWN_LENGTH && payloadStart + size > pool.getBufferSize()) {
+            target = ByteBuffer.allocate(payloadStart + size);
+        } else {
+            pooled = pool.acquire();
+            target = pooled;
+        }
+        try {
+            // Everything but the checksum goes in up front, the length is patched up below if it wasn't known
+            target.putInt((int) params.getPacketMagic());
+            target.putLong(entry.commandHigh);
+            target.putInt(entry.commandLow);
+            target.putInt(Integer.reverseBytes(size));
+            target.putInt(0);
+            PayloadWriter out = new PayloadWriter(target);
+            message.bitcoinSerialize(out);
+            ByteBuffer buffer = out.buffer();
+            int end = buffer.position();
+            if (size == Message.UNKNOWN_LENGTH)
+                buffer.putInt(payloadStart - 8, Integer.reverseBytes(end - payloadStart));
+            else
+                checkState(end - payloadStart == size, "%s wrote %s bytes but claimed %s", message.getClass(), end - payloadStart, size);
+            ((Buffer) buffer).position(payloadStart - 4);
+
+            if (message.isRelayable()) {
+                // The payload was copied as received, so is its checksum
+                buffer.putInt(message.getPayloadChecksum());
+            } else {
+                ByteBuffer payload = buffer.duplicate();
+                ((Buffer) payload).limit(end).position(payloadStart);
+                MessageDigest digest = DIGEST.get();
+                digest.update(payload);
+                byte[] hash = digest.digest(digest.digest());
+                buffer.put(hash, 0, 4);
+            }
+
+            ((Buffer) buffer).limit(end).position(0);
+            // The writer outgrew the pooled buffer, which can go straight back
+            if (pooled != null && buffer != pooled)
+                pool.release(pooled);
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            // Nobody else will ever see the pooled buffer, so it goes back before the failure propagates
+            if (pooled != null)
+                pool.release(pooled);
+            throw e;
+        }
     }
 
+    // SHA-256 digests are reset after every digest() call, so one per thread can be reused for every outbound message.
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return Sha256Hash.newDigest();
+        }
+    };
+
     private byte[] serializeMessage(Message message) {
-        return message.bitcoinSerialize();
+        // The bytes are only read from here on, so there is no need for bitcoinSerialize()'s defensive copy
+        return message.unsafeBitcoinSerialize();
     }
 
     /**
@@ -218,6 +419,10 @@ public class BitcoinSerializer extends MessageSerializer{
      */
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        serialize(name, message, Ints.fromByteArray(Sha256Hash.hashTwice(message)), out); //将消息哈希两次
+    }
+
+    private void serialize(String name, byte[] message, int checksum, OutputStream out) throws IOException {
         //数据头：4（magic） + 12（command） + 4（payload length） + 4（checksum）
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */]; //24
         Utils.uint32ToByteArrayBE(params.getPacketMagic(), header, 0); //写入4个字节魔法数
@@ -230,8 +435,7 @@ public class BitcoinSerializer extends MessageSerializer{
 
         Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN); //16的位置，写下消息的长度
 
-        byte[] hash = Sha256Hash.hashTwice(message); //将消息哈希两次
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4); //写入
+        Utils.uint32ToByteArrayBE(checksum, header, 4 + COMMAND_LEN + 4); //写入校验和
         out.write(header);
         out.write(message);
 
@@ -240,44 +444,109 @@ public class BitcoinSerializer extends MessageSerializer{
     }
 
 
+    /**
+     * <p>The fixed 20 byte part of a message header which follows the magic bytes: command, payload size and checksum.</p>
+     *
+     * <p>Headers are flyweights, the fields are decoded straight from the buffer into primitives and an instance can be
+     * reused for every message on a connection via {@link #decode(ByteBuffer)}, so decoding a header allocates
+     * nothing. The command is only turned into a String when somebody asks for it.</p>
+     *
+     * <p>Instances of this class are not safe for use by multiple threads.</p>
+     */
     public static class BitcoinPacketHeader {
         /** The largest number of bytes that a header can represent */
         public static final int HEADER_LENGTH = COMMAND_LEN + 4 + 4;
 
-        public final byte[] header;
-        public final String command;
-        public final int size;
-        public final byte[] checksum;
+        // The 12 command bytes as big endian words, NUL padded
+        private long commandHigh;
+        private int commandLow;
+        private int size;
+        // The first 4 bytes of the payload's double SHA-256, big endian
+        private int checksum;
+        private String command;
+
+        /** Creates an empty header, to be filled in by {@link #decode(ByteBuffer)}. */
+        public BitcoinPacketHeader() {
+        }
 
         public BitcoinPacketHeader(ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-            //头大小
-            header = new byte[HEADER_LENGTH];
-            System.out.println("deserialize BitcoinPacketHeader header length " + header.length + ", remaining length " + in.remaining());
-            in.get(header, 0, header.length);
-
-            int cursor = 0;
-
-            // The command is a NULL terminated string, unless the command fills all twelve bytes
-            // in which case the termination is implicit.
-            for (; header[cursor] != 0 && cursor < COMMAND_LEN; cursor++) ;
-            byte[] commandBytes = new byte[cursor];
-            System.arraycopy(header, 0, commandBytes, 0, cursor);
-
-            command = new String(commandBytes, StandardCharsets.US_ASCII);
-            cursor = COMMAND_LEN;
-
-            //4字节长度
-            size = (int) readUint32(header, cursor);
-            cursor += 4;
-
-            if (size > Message.MAX_SIZE || size < 0)
-                throw new ProtocolException("Message size too large: " + size);
-
-            // Old clients don't send the checksum.
-            checksum = new byte[4];
-            // Note that the size read above includes the checksum bytes.
-            System.arraycopy(header, cursor, checksum, 0, 4);
-            cursor += 4;
+            decode(in);
+        }
+
+        /** Creates a copy of the given header, for holding on to it beyond the next decode of the original. */
+        public BitcoinPacketHeader(BitcoinPacketHeader other) {
+            this.commandHigh = other.commandHigh;
+            this.commandLow = other.commandLow;
+            this.size = other.size;
+            this.checksum = other.checksum;
+            this.command = other.command;
+        }
+
+        /**
+         * Reads the header from the given buffer, replacing whatever this instance held before. On a
+         * BufferUnderflowException the buffer position and this header are left in an undefined state.
+         */
+        public BitcoinPacketHeader decode(ByteBuffer in) throws ProtocolException, BufferUnderflowException {
+            if (in.remaining() < HEADER_LENGTH)
+                throw new BufferUnderflowException();
+            boolean bigEndian = in.order() == ByteOrder.BIG_ENDIAN;
+            long high = in.getLong();
+            int low = in.getInt();
+            int size = in.getInt();
+            int checksum = in.getInt();
+            //命令按大端读入，长度是小端
+            this.commandHigh = bigEndian ? high : Long.reverseBytes(high);
+            this.commandLow = bigEndian ? low : Integer.reverseBytes(low);
+            this.size = bigEndian ? Integer.reverseBytes(size) : size;
+            this.checksum = bigEndian ? checksum : Integer.reverseBytes(checksum);
+            this.command = null;
+
+            if (this.size > Message.MAX_SIZE || this.size < 0)
+                throw new ProtocolException("Message size too large: " + this.size);
+            return this;
+        }
+
+        /** The payload size in bytes. */
+        public int getSize() {
+            return size;
+        }
+
+        /** The first 4 bytes of the payload's double SHA-256 as a big endian int. Old clients don't send it. */
+        public int getChecksum() {
+            return checksum;
+        }
+
+        /** The first 8 command bytes as a big endian long. */
+        public long getCommandHigh() {
+            return commandHigh;
+        }
+
+        /** The last 4 command bytes as a big endian int. */
+        public int getCommandLow() {
+            return commandLow;
+        }
+
+        /**
+         * The command, which is a NULL terminated string unless it fills all twelve bytes, in which case the termination
+         * is implicit. Built on first use and cached until the next {@link #decode(ByteBuffer)}.
+         */
+        public String getCommand() {
+            if (command == null) {
+                char[] chars = new char[COMMAND_LEN];
+                int length = 0;
+                for (; length < COMMAND_LEN; length++) {
+                    int b = commandByte(length);
+                    if (b == 0)
+                        break;
+                    chars[length] = (char) b;
+                }
+                command = new String(chars, 0, length);
+            }
+            return command;
+        }
+
+        private int commandByte(int i) {
+            return i < 8 ? (int) (commandHigh >>> (56 - 8 * i)) & 0xFF : (commandLow >>> (24 - 8 * (i - 8))) & 0xFF;
         }
     }
 
@@ -288,11 +557,12 @@ public class BitcoinSerializer extends MessageSerializer{
         BitcoinSerializer other = (BitcoinSerializer) o;
         return Objects.equals(params, other.params) &&
                 protocolVersion == other.protocolVersion &&
-                parseRetain == other.parseRetain;
+                parseRetain == other.parseRetain &&
+                parseLazy == other.parseLazy;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(params, protocolVersion, parseRetain);
+        return Objects.hash(params, protocolVersion, parseRetain, parseLazy);
     }
 }
@@ -0,0 +1,212 @@
+package org.bitcoin.core;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Creates a simple connection to a server using a {@link StreamConnection} to process data. Unlike
+ * {@link NioClient} this uses plain blocking socket I/O on a thread of its own per connection, created by the given
+ * {@link ThreadFactory}. On JDK 21+ passing {@code Thread.ofVirtual().factory()} makes that a virtual thread, so many
+ * thousands of connections cost little more than their buffers.</p>
+ *
+ * <p>Writes are performed synchronously on the calling thread, so the futures returned by
+ * {@link #writeBytes(byte[])} and {@link #writeBuffer(ByteBuffer)} are already complete. A slow peer therefore
+ * blocks its writers rather than building up a queue, and {@link StreamConnection#writabilityChanged(boolean)} is
+ * never called.</p>
+ */
+public class BlockingClient implements MessageWriteTarget {
+    private static final Logger log = LoggerFactory.getLogger(BlockingClient.class);
+
+    private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
+    private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
+
+    private final Socket socket;
+    private final Thread thread;
+    private volatile boolean vCloseRequested = false;
+    private final SettableFuture<SocketAddress> connectFuture;
+    // Only used to copy out of direct buffers, guarded by this
+    private byte[] writeScratch;
+    // The read loop waits on this monitor while readsPaused is set
+    private final Object readPauseLock = new Object();
+    private boolean readsPaused = false; // guarded by readPauseLock
+
+    /**
+     * <p>Creates a new client to the given server address using the given {@link StreamConnection} to decode the data.
+     * The given connection <b>MUST</b> be unique to this object. This does not block while waiting for the connection
+     * to open, but will block on the connection's thread while reading.</p>
+     *
+     * @param connectTimeoutMillis The connect timeout set on the connection (in milliseconds). 0 is interpreted as no
+     *                             timeout.
+     * @param socketFactory An object that creates {@link Socket} objects for the connection.
+     * @param threadFactory Creates the thread which connects and then reads from the socket.
+     * @param clientSet A set which this object will add itself to after initialization, and then remove itself from
+     *                  once closed, or null.
+     */
+    public BlockingClient(final SocketAddress serverAddress, final StreamConnection connection,
+                          final int connectTimeoutMillis, final SocketFactory socketFactory,
+                          final ThreadFactory threadFactory, final Set<BlockingClient> clientSet) throws IOException {
+        connectFuture = SettableFuture.create();
+        // Try to connect to the server on the connection's own thread, so the caller never blocks
+        connection.setWriteTarget(this);
+        socket = socketFactory.createSocket();
+        thread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                if (clientSet != null)
+                    clientSet.add(BlockingClient.this);
+                try {
+                    socket.connect(serverAddress, connectTimeoutMillis);
+                    connection.connectionOpened();
+                    connectFuture.set(serverAddress);
+                    InputStream stream = socket.getInputStream();
+                    runReadLoop(stream, connection, BlockingClient.this);
+                } catch (Exception e) {
+                    if (!vCloseRequested) {
+                        log.error("Error trying to open/read from connection: {}: {}", serverAddress, e.getMessage());
+                        connectFuture.setException(e);
+                    }
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e1) {
+                        // At this point there isn't much we can do, and we can probably assume the channel is closed
+                    }
+                    if (clientSet != null)
+                        clientSet.remove(BlockingClient.this);
+                    connection.connectionClosed();
+                }
+            }
+        });
+        thread.setName("BlockingClient network thread for " + serverAddress);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A blocking call that never returns, except by throwing an exception. It reads bytes from the input stream
+     * and feeds them to the provided {@link StreamConnection}, for example, a {@link Peer}.
+     */
+    public static void runReadLoop(InputStream stream, StreamConnection connection) throws Exception {
+        runReadLoop(stream, connection, null);
+    }
+
+    // As above, holding off each read while the given client, if any, has its reads paused
+    private static void runReadLoop(InputStream stream, StreamConnection connection, BlockingClient client)
+            throws Exception {
+        ByteBuffer buff = ByteBuffer.allocate(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        byte[] readBuff = buff.array();
+        while (true) {
+            // Read directly into the backing array behind whatever is left over from last time
+            checkState(buff.remaining() > 0);
+            if (client != null)
+                client.awaitReadsResumed();
+            int read = stream.read(readBuff, buff.position(), buff.remaining());
+            if (read == -1)
+                return;
+            ((Buffer) buff).position(buff.position() + read);
+            ((Buffer) buff).flip();
+            // Use connection.receiveBytes's return value as a double-check that it stopped reading at the right
+            // location
+            int bytesConsumed = connection.receiveBytes(buff);
+            checkState(buff.position() == bytesConsumed);
+            // Now drop the bytes which were read by compacting buff (resetting limit and keeping relative position)
+            buff.compact();
+        }
+    }
+
+    /**
+     * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
+     * event on the network-handling thread where all callbacks occur.
+     */
+    @Override
+    public void closeConnection() {
+        // Closes the channel, triggering an exception in the network-handling thread triggering connectionClosed()
+        try {
+            vCloseRequested = true;
+            synchronized (readPauseLock) {
+                readPauseLock.notifyAll();
+            }
+            socket.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized ListenableFuture writeBytes(byte[] message) throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            stream.write(message);
+            stream.flush();
+            return Futures.immediateFuture(null);
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized ListenableFuture writeBuffer(ByteBuffer buffer) throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            if (buffer.hasArray()) {
+                stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                ((Buffer) buffer).position(buffer.limit());
+            } else {
+                // Direct buffers have to go through a heap copy, done in bounded chunks
+                if (writeScratch == null)
+                    writeScratch = new byte[BUFFER_SIZE_LOWER_BOUND];
+                while (buffer.hasRemaining()) {
+                    int len = Math.min(buffer.remaining(), writeScratch.length);
+                    buffer.get(writeScratch, 0, len);
+                    stream.write(writeScratch, 0, len);
+                }
+            }
+            stream.flush();
+            return Futures.immediateFuture(null);
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setReadsPaused(boolean paused) {
+        synchronized (readPauseLock) {
+            readsPaused = paused;
+            if (!paused)
+                readPauseLock.notifyAll();
+        }
+    }
+
+    // Blocks the read loop while reads are paused. Closing the connection lets it go, its next read then fails.
+    private void awaitReadsResumed() throws InterruptedException {
+        synchronized (readPauseLock) {
+            while (readsPaused && !vCloseRequested)
+                readPauseLock.wait();
+        }
+    }
+
+    /** Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect. */
+    public ListenableFuture<SocketAddress> getConnectFuture() {
+        return connectFuture;
+    }
+}
@@ -0,0 +1,103 @@
+package org.bitcoin.core;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A thin wrapper around a set of {@link BlockingClient}s, the blocking counterpart of {@link NioClientManager}.</p>
+ *
+ * <p>Every connection gets a thread of its own from the given {@link ThreadFactory} and does plain blocking socket
+ * I/O on it, which keeps the per-connection code path short and easy to reason about when tuning tail latency. With
+ * platform threads this only scales to a modest number of peers; on JDK 21+ pass
+ * {@code Thread.ofVirtual().factory()} to run each connection on a virtual thread instead.</p>
+ */
+public class BlockingClientManager extends AbstractIdleService implements ClientConnectionManager {
+    private final SocketFactory socketFactory;
+    private final ThreadFactory threadFactory;
+    private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
+
+    private int connectTimeoutMillis = 1000;
+
+    public BlockingClientManager() {
+        this(SocketFactory.getDefault(), Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Creates a manager which runs every connection on a thread obtained from the given factory.
+     */
+    public BlockingClientManager(ThreadFactory threadFactory) {
+        this(SocketFactory.getDefault(), threadFactory);
+    }
+
+    /**
+     * Creates a manager which opens its sockets with the given factory, for example to proxy them.
+     */
+    public BlockingClientManager(SocketFactory socketFactory, ThreadFactory threadFactory) {
+        this.socketFactory = checkNotNull(socketFactory);
+        this.threadFactory = checkNotNull(threadFactory);
+    }
+
+    @Override
+    public ListenableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection) {
+        return openConnection(serverAddress, connection, connectTimeoutMillis);
+    }
+
+    @Override
+    public ListenableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection,
+                                                          int connectTimeoutMillis) {
+        try {
+            if (!isRunning())
+                throw new IllegalStateException();
+            return new BlockingClient(serverAddress, connection, connectTimeoutMillis, socketFactory, threadFactory, clients).getConnectFuture();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
+        }
+    }
+
+    /**
+     * Sets the number of milliseconds to wait before giving up on a connect attempt, for connections opened without
+     * an explicit timeout
+     */
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    @Override
+    protected void startUp() throws Exception { }
+
+    @Override
+    protected void shutDown() throws Exception {
+        synchronized (clients) {
+            for (BlockingClient client : clients)
+                client.closeConnection();
+        }
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        return clients.size();
+    }
+
+    @Override
+    public void closeConnections(int n) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        synchronized (clients) {
+            Iterator<BlockingClient> it = clients.iterator();
+            while (n-- > 0 && it.hasNext())
+                it.next().closeConnection();
+        }
+    }
+}
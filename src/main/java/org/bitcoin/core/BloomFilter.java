@@ -21,8 +21,6 @@ package org.bitcoin.core;
 
 import com.google.common.base.MoreObjects;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -150,15 +148,19 @@ public class BloomFilter extends Message {
     }
     
     /**
-     * Serializes this message to the provided stream. If you just want the raw bytes use bitcoinSerialize().
+     * Serializes this message to the provided writer. If you just want the raw bytes use bitcoinSerialize().
      */
     @Override
-    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
-        stream.write(new VarInt(data.length).encode());
-        stream.write(data);
-        Utils.uint32ToByteStreamLE(hashFuncs, stream);
-        Utils.uint32ToByteStreamLE(nTweak, stream);
-        stream.write(nFlags);
+    protected void bitcoinSerializeToWriter(PayloadWriter writer) {
+        writer.writeVarBytes(data);
+        writer.writeUint32(hashFuncs);
+        writer.writeUint32(nTweak);
+        writer.writeByte(nFlags);
+    }
+
+    @Override
+    protected int computeSerializedSize() {
+        return VarInt.sizeOf(data.length) + data.length + 4 + 4 + 1;
     }
 
     private static int rotateLeft32(int x, int r) {
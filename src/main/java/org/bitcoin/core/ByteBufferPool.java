@@ -0,0 +1,80 @@
+package org.bitcoin.core;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of equally sized {@link ByteBuffer}s. Buffers are handed out by {@link #acquire()} and should be given
+ * back with {@link #release(ByteBuffer)} once the borrower no longer references them. At most {@code maxPooled} idle
+ * buffers are retained, any further released buffers are simply left to the garbage collector.</p>
+ *
+ * <p>Instances of this class are thread safe.</p>
+ */
+public class ByteBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    /**
+     * @param bufferSize the capacity of every buffer handed out by this pool
+     * @param maxPooled the maximum number of idle buffers to keep around for reuse
+     * @param direct whether to allocate direct (off-heap) or heap buffers
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+        checkArgument(bufferSize > 0, "bufferSize must be positive: %s", bufferSize);
+        checkArgument(maxPooled >= 0, "maxPooled must not be negative: %s", maxPooled);
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * Returns a cleared buffer of {@link #getBufferSize()} bytes, reusing an idle one if available.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null)
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        pooledCount.decrementAndGet();
+        ((Buffer) buffer).clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not touch the buffer afterwards. Buffers which don't fit this
+     * pool (wrong capacity, wrong kind or read-only) are silently dropped, so it is always safe to release a buffer
+     * which may or may not have come from here.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct || buffer.isReadOnly())
+            return;
+        if (pooledCount.incrementAndGet() > maxPooled) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        pool.offer(buffer);
+    }
+
+    /** The capacity of the buffers handed out by this pool. */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Whether this pool hands out direct buffers. */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /** The number of idle buffers currently held for reuse. */
+    public int getPooledCount() {
+        return pooledCount.get();
+    }
+}
@@ -32,6 +32,12 @@ public abstract class ChildMessage extends Message {
         this.parent = parent;
     }
 
+    public ChildMessage(NetworkParameters params, PayloadReader reader, Message parent,
+                        MessageSerializer serializer, int length) throws ProtocolException {
+        super(params, reader, serializer, length);
+        this.parent = parent;
+    }
+
     public final void setParent(Message parent) {
         if (this.parent != null && this.parent != parent && parent != null) {
             // After old parent is unlinked it won't be able to receive notice if this ChildMessage
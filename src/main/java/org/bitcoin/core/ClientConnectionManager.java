@@ -12,6 +12,14 @@ public interface ClientConnectionManager extends Service {
      */
     ListenableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection);
 
+    /**
+     * Like {@link #openConnection(SocketAddress, StreamConnection)}, but gives up if the connection hasn't been
+     * established within the given number of milliseconds. The future then fails with a
+     * {@link java.net.SocketTimeoutException} and the connection is told it was closed. 0 means no timeout.
+     */
+    ListenableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection,
+                                                   int connectTimeoutMillis);
+
     /** Gets the number of connected peers */
     int getConnectedClientCount();
 
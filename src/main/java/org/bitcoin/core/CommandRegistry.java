@@ -0,0 +1,263 @@
+package org.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Maps message commands to the classes implementing them and back, for {@link BitcoinSerializer}.</p>
+ *
+ * <p>Inbound lookups are keyed on the raw 12 command bytes of the header, held as a big endian long and int (see
+ * {@link BitcoinSerializer.BitcoinPacketHeader#getCommandHigh()}). The registered commands are hashed into a table
+ * whose size and hash seed are picked when the registry is built so that no two commands collide, so a lookup is a
+ * single multiply, one array read and one compare, and no String is ever created for a known command.</p>
+ *
+ * <p>Every command also has a payload size limit, which {@link BitcoinSerializer} enforces as soon as a header is decoded,
+ * before any of the payload is buffered or hashed. Commands without a tighter bound, and unknown ones, are limited to
+ * {@link Message#MAX_SIZE}.</p>
+ *
+ * <p>Commands registered with a {@link ReaderFactory} are parsed straight from the buffers their payload arrived in,
+ * which saves copying it into an array first. That suits small control messages, which are used once and never need
+ * their bytes again. It also matters for any command whose payload can be larger than a read buffer: without a
+ * {@link ReaderFactory} such a payload has to be joined from its chunks into one array before it can be parsed.</p>
+ *
+ * <p>New message types are supported by adding a {@link #register(String, Class, int, MessageFactory)} call to
+ * {@link #DEFAULT}. Instances of this class are immutable and thread safe once built.</p>
+ */
+public class CommandRegistry {
+
+    /** Creates a message from its payload. */
+    public interface MessageFactory {
+        Message make(BitcoinSerializer serializer, byte[] payloadBytes, int length, byte[] hash) throws ProtocolException;
+    }
+
+    /** Creates a message by parsing it straight from the buffers holding its payload. */
+    public interface ReaderFactory {
+        Message make(BitcoinSerializer serializer, PayloadReader payload, int length) throws ProtocolException;
+    }
+
+    /** A registered command together with its class and factories. */
+    public static class Entry {
+        public final String command;
+        public final long commandHigh;
+        public final int commandLow;
+        public final Class<? extends Message> type;
+        public final int maxPayloadSize;
+        public final MessageFactory factory;
+        public final ReaderFactory readerFactory;
+
+        Entry(String command, Class<? extends Message> type, int maxPayloadSize, MessageFactory factory,
+              ReaderFactory readerFactory) {
+            this.command = command;
+            this.commandHigh = commandHigh(command);
+            this.commandLow = commandLow(command);
+            this.type = type;
+            this.maxPayloadSize = maxPayloadSize;
+            this.factory = factory;
+            this.readerFactory = readerFactory;
+        }
+    }
+
+    private static final int COMMAND_LEN = 12;
+    // Arbitrary odd constant to spread the command bits, the per-table seed is mixed in on top
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    // Fixed fields (80 bytes), a user agent of at most 256 bytes with its length prefix, start height and relay flag
+    private static final int MAX_VERSION_SIZE = 80 + 3 + 256 + 4 + 1;
+    // Count prefix plus at most 1000 entries of 30 bytes
+    private static final int MAX_ADDR_SIZE = 3 + 1000 * 30;
+    // BIP155 addresses may be up to 512 bytes long. Those of networks we don't know have to be accepted and ignored.
+    private static final int MAX_ADDRV2_ADDRESS_LENGTH = 512;
+    // Count prefix plus at most 1000 entries of time, services, network id, the longest legal address with its length
+    // prefix, and port
+    private static final int MAX_ADDRV2_SIZE = 3 + 1000 * (4 + 9 + 1 + 3 + MAX_ADDRV2_ADDRESS_LENGTH + 2);
+
+    public static final CommandRegistry DEFAULT = new CommandRegistry()
+            .register("version", VersionMessage.class, MAX_VERSION_SIZE, new MessageFactory() {
+                @Override
+                public Message make(BitcoinSerializer serializer, byte[] payloadBytes, int length, byte[] hash) throws ProtocolException {
+                    return new VersionMessage(serializer.getParameters(), payloadBytes);
+                }
+            }, new ReaderFactory() {
+                @Override
+                public Message make(BitcoinSerializer serializer, PayloadReader payload, int length) throws ProtocolException {
+                    return new VersionMessage(serializer.getParameters(), payload);
+                }
+            })
+            .register("ping", Ping.class, 8, new MessageFactory() {
+                @Override
+                public Message make(BitcoinSerializer serializer, byte[] payloadBytes, int length, byte[] hash) throws ProtocolException {
+                    return new Ping(serializer.getParameters(), payloadBytes);
+                }
+            }, new ReaderFactory() {
+                @Override
+                public Message make(BitcoinSerializer serializer, PayloadReader payload, int length) throws ProtocolException {
+                    return new Ping(serializer.getParameters(), payload);
+                }
+            })
+            .register("pong", Pong.class, 8, new MessageFactory() {
+                @Override
+                public Message make(BitcoinSerializer serializer, byte[] payloadBytes, int length, byte[] hash) throws ProtocolException {
+                    return new Pong(serializer.getParameters(), payloadBytes);
+                }
+            }, new ReaderFactory() {
+                @Override
+                public Message make(BitcoinSerializer serializer, PayloadReader payload, int length) throws ProtocolException {
+                    return new Pong(serializer.getParameters(), payload);
+                }
+            })
+            .register("sendaddrv2", SendAddrV2Message.class, 0, new MessageFactory() {
+                @Override
+                public Message make(BitcoinSerializer serializer, byte[] payloadBytes, int length, byte[] hash) {
+                    return new SendAddrV2Message(serializer.getParameters());
+                }
+            }, new ReaderFactory() {
+                @Override
+                public Message make(BitcoinSerializer serializer, PayloadReader payload, int length) {
+                    return new SendAddrV2Message(serializer.getParameters());
+                }
+            })
+            .register("addr", AddressV1Message.class, MAX_ADDR_SIZE, new MessageFactory() {
+                @Override
+                public Message make(BitcoinSerializer serializer, byte[] payloadBytes, int length, byte[] hash) throws ProtocolException {
+                    return serializer.makeAddressV1Message(payloadBytes, length);
+                }
+            })
+            .register("addrv2", AddressV2Message.class, MAX_ADDRV2_SIZE, new MessageFactory() {
+                @Override
+                public Message make(BitcoinSerializer serializer, byte[] payloadBytes, int length, byte[] hash) throws ProtocolException {
+                    return serializer.makeAddressV2Message(payloadBytes, length);
+                }
+            })
+            .build();
+
+    // Filled by register(), then frozen by build()
+    private List<Entry> pending = new ArrayList<>();
+
+    private Entry[] table;
+    private long seed;
+    private int shift;
+    private final Map<Class<? extends Message>, Entry> byClass = new HashMap<>();
+
+    public CommandRegistry() {
+    }
+
+    /**
+     * Adds a command whose payload may be up to {@link Message#MAX_SIZE} bytes. The factory may be null for messages
+     * which are only ever sent.
+     */
+    public CommandRegistry register(String command, Class<? extends Message> type, MessageFactory factory) {
+        return register(command, type, Message.MAX_SIZE, factory);
+    }
+
+    /**
+     * Adds a command whose payload may be up to maxPayloadSize bytes. The factory may be null for messages which are
+     * only ever sent.
+     */
+    public CommandRegistry register(String command, Class<? extends Message> type, int maxPayloadSize, MessageFactory factory) {
+        return register(command, type, maxPayloadSize, factory, null);
+    }
+
+    /**
+     * Adds a command whose payload may be up to maxPayloadSize bytes and which can also be parsed straight from the
+     * buffers holding it. The factories may be null for messages which are only ever sent.
+     */
+    public CommandRegistry register(String command, Class<? extends Message> type, int maxPayloadSize, MessageFactory factory,
+                                    ReaderFactory readerFactory) {
+        checkState(pending != null, "Registry already built");
+        checkArgument(0 <= maxPayloadSize && maxPayloadSize <= Message.MAX_SIZE, "Bad size limit for %s: %s", command, maxPayloadSize);
+        checkArgument(!command.isEmpty() && command.length() <= COMMAND_LEN, "Bad command: %s", command);
+        for (int i = 0; i < command.length(); i++)
+            checkArgument(command.charAt(i) > 0 && command.charAt(i) < 0x80, "Command must be ASCII: %s", command);
+        Entry entry = new Entry(command, type, maxPayloadSize, factory, readerFactory);
+        for (Entry other : pending)
+            checkArgument(!other.command.equals(command), "Command registered twice: %s", command);
+        checkArgument(!byClass.containsKey(type), "Class registered twice: %s", type);
+        pending.add(entry);
+        byClass.put(type, entry);
+        return this;
+    }
+
+    /**
+     * Freezes the registry, picking the smallest power of two table size and a seed under which every command gets a
+     * slot of its own.
+     */
+    public CommandRegistry build() {
+        checkState(pending != null, "Registry already built");
+        int bits = 1;
+        while ((1 << bits) < pending.size() * 2)
+            bits++;
+        for (; ; bits++) {
+            for (long candidate = 1; candidate < 1 << 16; candidate += 2) {
+                Entry[] slots = new Entry[1 << bits];
+                int candidateShift = 64 - bits;
+                boolean collision = false;
+                for (Entry entry : pending) {
+                    int index = index(entry.commandHigh, entry.commandLow, candidate, candidateShift);
+                    if (slots[index] != null) {
+                        collision = true;
+                        break;
+                    }
+                    slots[index] = entry;
+                }
+                if (!collision) {
+                    table = slots;
+                    seed = candidate;
+                    shift = candidateShift;
+                    pending = null;
+                    return this;
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up the command held in the given header words, returning null if it isn't registered.
+     */
+    public Entry lookup(long commandHigh, int commandLow) {
+        Entry entry = table[index(commandHigh, commandLow, seed, shift)];
+        if (entry != null && entry.commandHigh == commandHigh && entry.commandLow == commandLow)
+            return entry;
+        return null;
+    }
+
+    /**
+     * Returns the payload size limit for the command held in the given header words.
+     */
+    public int maxPayloadSize(long commandHigh, int commandLow) {
+        Entry entry = lookup(commandHigh, commandLow);
+        return entry != null ? entry.maxPayloadSize : Message.MAX_SIZE;
+    }
+
+    /**
+     * Returns the entry for the given message class, or null if it isn't registered.
+     */
+    public Entry lookup(Class<? extends Message> type) {
+        return byClass.get(type);
+    }
+
+    private static int index(long commandHigh, int commandLow, long seed, int shift) {
+        long h = (commandHigh ^ (commandLow & 0xFFFFFFFFL) * MIX) * (MIX ^ seed);
+        return (int) (h >>> shift);
+    }
+
+    /** The first 8 bytes of the NUL padded command as a big endian long. */
+    static long commandHigh(String command) {
+        long high = 0;
+        for (int i = 0; i < 8; i++)
+            high = (high << 8) | (i < command.length() ? command.charAt(i) & 0xFF : 0);
+        return high;
+    }
+
+    /** The last 4 bytes of the NUL padded command as a big endian int. */
+    static int commandLow(String command) {
+        int low = 0;
+        for (int i = 8; i < COMMAND_LEN; i++)
+            low = (low << 8) | (i < command.length() ? command.charAt(i) & 0xFF : 0);
+        return low;
+    }
+}
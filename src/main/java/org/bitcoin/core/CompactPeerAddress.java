@@ -0,0 +1,270 @@
+package org.bitcoin.core;
+
+import com.google.common.primitives.Longs;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A network address of a peer packed into primitives, for keeping large numbers of gossiped addresses around. Where
+ * a {@link PeerAddress} holds an {@link InetAddress}, a {@link BigInteger}, a host name String and all the state of a
+ * {@link Message}, this holds the raw address bytes of up to 32 bytes in four longs, its
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0155.mediawiki">BIP 155</a> network id, and the services,
+ * time and port as plain numbers. The {@link InetAddress} or .onion host name are only created when asked for.</p>
+ *
+ * <p>Two addresses are equal if they denote the same endpoint, i.e. network, address bytes and port, so a set of them
+ * deduplicates addresses which are gossiped again with a newer time or different services. Comparing and hashing
+ * only touches primitive fields.</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public final class CompactPeerAddress {
+    public static final int NETWORK_IPV4 = 0x01;
+    public static final int NETWORK_IPV6 = 0x02;
+    public static final int NETWORK_TORV2 = 0x03;
+    public static final int NETWORK_TORV3 = 0x04;
+    public static final int NETWORK_I2P = 0x05;
+    public static final int NETWORK_CJDNS = 0x06;
+
+    // The longest address of the networks we know, TORv3 and I2P, and so the most we pack
+    private static final int MAX_ADDRESS_LENGTH = 32;
+    // BIP 155 allows addresses of up to 512 bytes, those of networks we don't know are skipped
+    private static final int MAX_ENCODED_ADDRESS_LENGTH = 512;
+    private static final byte[] IPV4_MAPPED_PREFIX = Utils.HEX.decode("00000000000000000000ffff");
+    private static final byte[] ONIONCAT_PREFIX = Utils.HEX.decode("fd87d87eeb43");
+
+    // The address bytes in big endian order, zero padded to 32 bytes
+    private final long address0, address1, address2, address3;
+    private final long services;
+    private final int time;
+    private final short port;
+    private final byte networkId;
+    private final byte addressLength;
+
+    /**
+     * @param networkId the BIP 155 network id, one of the NETWORK_ constants
+     * @param address the raw address bytes, e.g. 4 for IPv4 or the 32 byte public key for TORv3
+     * @param port the port
+     * @param services the service bits
+     * @param time the time the address was last seen, in seconds since the epoch, or 0 if unknown
+     */
+    public CompactPeerAddress(int networkId, byte[] address, int port, long services, long time) {
+        checkArgument(expectedLength(networkId) >= 0, "Unknown network id: %s", networkId);
+        checkArgument(expectedLength(networkId) == address.length,
+                "Bad address length for network %s: %s", networkId, address.length);
+        byte[] padded = Arrays.copyOf(address, MAX_ADDRESS_LENGTH);
+        this.address0 = Longs.fromBytes(padded[0], padded[1], padded[2], padded[3], padded[4], padded[5], padded[6], padded[7]);
+        this.address1 = Longs.fromBytes(padded[8], padded[9], padded[10], padded[11], padded[12], padded[13], padded[14], padded[15]);
+        this.address2 = Longs.fromBytes(padded[16], padded[17], padded[18], padded[19], padded[20], padded[21], padded[22], padded[23]);
+        this.address3 = Longs.fromBytes(padded[24], padded[25], padded[26], padded[27], padded[28], padded[29], padded[30], padded[31]);
+        this.networkId = (byte) networkId;
+        this.addressLength = (byte) address.length;
+        this.port = (short) port;
+        this.services = services;
+        this.time = (int) time;
+    }
+
+    /**
+     * Reads an address in the wire format of the given protocol version: 0 as in {@link VersionMessage}, 1 as in
+     * {@link AddressV1Message} or 2 as in {@link AddressV2Message}. Unlike {@link PeerAddress}, addresses of networks
+     * we can't connect to, such as I2P, are kept rather than dropped.
+     *
+     * @return the address, or null for a version 2 entry of a network unknown to us, which BIP 155 says to skip
+     */
+    public static CompactPeerAddress read(PayloadReader reader, int protocolVersion) throws ProtocolException {
+        if (protocolVersion < 0 || protocolVersion > 2)
+            throw new IllegalStateException("invalid protocolVersion: " + protocolVersion);
+        long time = protocolVersion >= 1 ? reader.readUint32() : 0;
+        int networkId;
+        byte[] address;
+        long services;
+        if (protocolVersion == 2) {
+            services = reader.readVarInt().longValue();
+            networkId = reader.readByte() & 0xFF;
+            long length = reader.readVarInt().longValue();
+            if (length < 0 || length > MAX_ENCODED_ADDRESS_LENGTH)
+                throw new ProtocolException("invalid address length: " + length);
+            int expected = expectedLength(networkId);
+            if (expected < 0) {
+                reader.skip((int) length + 2); // address and port
+                return null;
+            }
+            if (expected != length)
+                throw new ProtocolException("invalid length of address for network " + networkId + ": " + length);
+            address = reader.readBytes((int) length);
+        } else {
+            services = reader.readInt64();
+            address = reader.readBytes(16);
+            if (startsWith(address, IPV4_MAPPED_PREFIX)) {
+                networkId = NETWORK_IPV4;
+                address = Arrays.copyOfRange(address, 12, 16);
+            } else if (startsWith(address, ONIONCAT_PREFIX)) {
+                networkId = NETWORK_TORV2;
+                address = Arrays.copyOfRange(address, 6, 16);
+            } else {
+                networkId = NETWORK_IPV6;
+            }
+        }
+        int port = reader.readUint16BE();
+        return new CompactPeerAddress(networkId, address, port, services, time);
+    }
+
+    /**
+     * Writes this address in the wire format of the given protocol version, see {@link #read(PayloadReader, int)}.
+     *
+     * @throws IllegalStateException if the format can't express the address, e.g. TORv3 in version 1
+     */
+    public void write(PayloadWriter writer, int protocolVersion) {
+        if (protocolVersion < 0 || protocolVersion > 2)
+            throw new IllegalStateException("invalid protocolVersion: " + protocolVersion);
+        if (protocolVersion >= 1)
+            writer.writeUint32(getTime());
+        if (protocolVersion == 2) {
+            writer.writeVarInt(services);
+            writer.writeByte(networkId);
+            writer.writeVarBytes(getAddressBytes());
+        } else {
+            writer.writeInt64(services);
+            if (networkId == NETWORK_IPV4)
+                writer.writeBytes(IPV4_MAPPED_PREFIX);
+            else if (networkId == NETWORK_TORV2)
+                writer.writeBytes(ONIONCAT_PREFIX);
+            else if (networkId != NETWORK_IPV6 && networkId != NETWORK_CJDNS)
+                throw new IllegalStateException("network " + networkId + " has no version " + protocolVersion + " format");
+            writer.writeBytes(getAddressBytes());
+        }
+        writer.writeUint16BE(getPort());
+    }
+
+    /** The BIP 155 network id, one of the NETWORK_ constants. */
+    public int getNetworkId() {
+        return networkId & 0xFF;
+    }
+
+    /** Returns a copy of the raw address bytes. */
+    public byte[] getAddressBytes() {
+        ByteBuffer padded = ByteBuffer.allocate(MAX_ADDRESS_LENGTH);
+        padded.putLong(address0).putLong(address1).putLong(address2).putLong(address3);
+        return Arrays.copyOf(padded.array(), addressLength);
+    }
+
+    /** Creates the IP address, or returns null for networks which don't have one, like Tor. */
+    public InetAddress getAddr() {
+        if (networkId != NETWORK_IPV4 && networkId != NETWORK_IPV6 && networkId != NETWORK_CJDNS)
+            return null;
+        return PeerAddress.getByAddress(getAddressBytes());
+    }
+
+    /** Creates the .onion host name of a Tor address, or returns null for other networks. */
+    public String getHostname() {
+        if (networkId != NETWORK_TORV2 && networkId != NETWORK_TORV3)
+            return null;
+        return PeerAddress.onionHostname(getAddressBytes());
+    }
+
+    public int getPort() {
+        return port & 0xFFFF;
+    }
+
+    public long getServices() {
+        return services;
+    }
+
+    /** The time the address was last seen, in seconds since the epoch, or 0 if unknown. */
+    public long getTime() {
+        return time & 0xFFFFFFFFL;
+    }
+
+    /** Returns a copy with the given time and services, e.g. when an address we know is gossiped again. */
+    public CompactPeerAddress withTimeAndServices(long time, long services) {
+        return new CompactPeerAddress(getNetworkId(), getAddressBytes(), getPort(), services, time);
+    }
+
+    /**
+     * Creates the socket address to connect to, unresolved for Tor. Returns null for networks we can't connect to.
+     */
+    public InetSocketAddress toSocketAddress() {
+        InetAddress addr = getAddr();
+        if (addr != null)
+            return new InetSocketAddress(addr, getPort());
+        String hostname = getHostname();
+        if (hostname != null)
+            return InetSocketAddress.createUnresolved(hostname, getPort());
+        return null;
+    }
+
+    /**
+     * Expands this address into a {@link PeerAddress} in the format of {@link VersionMessage}s, or returns null for
+     * networks {@link PeerAddress} can't represent. The time isn't carried over.
+     */
+    public PeerAddress toPeerAddress(NetworkParameters params) {
+        InetAddress addr = getAddr();
+        PeerAddress peerAddress;
+        if (addr != null) {
+            peerAddress = new PeerAddress(params, addr, getPort(), BigInteger.valueOf(services));
+        } else {
+            String hostname = getHostname();
+            if (hostname == null)
+                return null;
+            peerAddress = new PeerAddress(params, hostname, getPort());
+        }
+        return peerAddress;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CompactPeerAddress other = (CompactPeerAddress) o;
+        return address0 == other.address0 && address1 == other.address1 && address2 == other.address2 &&
+                address3 == other.address3 && port == other.port && networkId == other.networkId &&
+                addressLength == other.addressLength;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = address0 * 31 + address1;
+        h = h * 31 + address2;
+        h = h * 31 + address3;
+        h = h * 31 + ((networkId & 0xFF) << 16 | (port & 0xFFFF));
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        InetSocketAddress socketAddress = toSocketAddress();
+        return socketAddress != null ? socketAddress.toString()
+                : "[network " + getNetworkId() + "]:" + getPort();
+    }
+
+    // The address length the network requires, or -1 for networks we don't know
+    private static int expectedLength(int networkId) {
+        switch (networkId) {
+            case NETWORK_IPV4:
+                return 4;
+            case NETWORK_IPV6:
+            case NETWORK_CJDNS:
+                return 16;
+            case NETWORK_TORV2:
+                return 10;
+            case NETWORK_TORV3:
+            case NETWORK_I2P:
+                return 32;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+}
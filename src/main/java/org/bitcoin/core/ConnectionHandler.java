@@ -10,14 +10,19 @@ import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -35,8 +40,15 @@ public class ConnectionHandler implements MessageWriteTarget {
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
 
-    //读取的buf数据
-    private final ByteBuffer readBuff;
+    // Read buffers are only needed while a socket has bytes pending, so they are borrowed from a shared pool instead
+    // of every connection owning one for its whole life. Idle peers therefore cost no direct memory.
+    private static final ByteBufferPool DEFAULT_READ_BUFFER_POOL = new ByteBufferPool(BUFFER_SIZE_UPPER_BOUND, 256, true);
+
+    private final ByteBufferPool readBufferPool;
+    private final int readBufferSize;
+    //读取的buf数据，只在有未处理的数据时才持有，readBuffSlab是从池中借来的原始buffer，readBuff可能是它的一个slice
+    private ByteBuffer readBuff;
+    private ByteBuffer readBuffSlab;
     //channel
     private final SocketChannel channel;
     //对应的SelectionKey
@@ -47,8 +59,33 @@ public class ConnectionHandler implements MessageWriteTarget {
     private long bytesToWriteRemaining = 0;
     private final LinkedList<BytesAndFuture> bytesToWrite = new LinkedList<>();
 
+    // Outbound queue sizes at which the connection is reported unwritable and writable again, see
+    // setWriteBufferWaterMarks
+    static final long DEFAULT_LOW_WATER_MARK = 256 * 1024;
+    static final long DEFAULT_HIGH_WATER_MARK = 1024 * 1024;
+    private long lowWaterMark = DEFAULT_LOW_WATER_MARK;
+    private long highWaterMark = DEFAULT_HIGH_WATER_MARK;
+    private boolean pauseReadsWhenUnwritable = false;
+    private boolean writable = true;
+    // Set by the connection through setReadsPaused, independently of pauseReadsWhenUnwritable
+    private boolean readsPaused = false;
+    // Writers report the connection unwritable on their own threads while the network thread reports it writable
+    // again, so notifications are serialized on this monitor and re-read the state, so the last one delivered is
+    // always the current state. Never taken with the lock held.
+    private final Object writabilityNotifyLock = new Object();
+    private boolean notifiedWritable = true; // guarded by writabilityNotifyLock
+
+    // How many queued messages are handed to a single gathering write. Linux caps a writev at IOV_MAX (1024) buffers.
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 64;
+    private static final int MAX_WRITE_BATCH_SIZE = 1024;
+    // Reused for every gathering write, only touched with the lock held
+    private ByteBuffer[] writeBatch = new ByteBuffer[DEFAULT_WRITE_BATCH_SIZE];
+
     private Set<ConnectionHandler> connectedHandlers;
 
+    // Shared by every handler on the same selector, see setSelectorWakeupPending. Null means always wake up.
+    private volatile AtomicBoolean selectorWakeupPending;
+
     private static class BytesAndFuture {
         public final ByteBuffer bytes;
         public final SettableFuture future;
@@ -61,15 +98,27 @@ public class ConnectionHandler implements MessageWriteTarget {
 
     //NioServer、NioClientManager用，工厂创建的streamConnection，里面对于建立链接、关闭链接、读数据的回调
     public ConnectionHandler(StreamConnection connection, SelectionKey key) {
+        this(connection, key, DEFAULT_READ_BUFFER_POOL);
+    }
+
+    /**
+     * Creates a handler which borrows its read buffers from the given pool. The pool's buffers must be at least
+     * as large as the buffer this connection asks for (see {@link StreamConnection#getMaxMessageSize()}), capped at
+     * 64 KB.
+     */
+    public ConnectionHandler(StreamConnection connection, SelectionKey key, ByteBufferPool readBufferPool) {
         this.key = key;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
+        this.readBufferPool = checkNotNull(readBufferPool);
         if (connection == null) {
-            readBuff = null;
+            readBufferSize = 0;
             return;
         }
         this.connection = connection;
-        //分配内存空间，直接内存
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        //buffer大小，真正的内存只有在有数据可读时才从池中借用
+        readBufferSize = Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
+        checkState(readBufferPool.getBufferSize() >= readBufferSize, "Pooled read buffers of %s bytes are smaller than %s",
+                readBufferPool.getBufferSize(), readBufferSize);
         connection.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
@@ -99,29 +148,187 @@ public class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Only called from the selector thread, see handleKey.
+    private ByteBuffer borrowReadBuffer() {
+        if (readBuff == null) {
+            readBuffSlab = readBufferPool.acquire();
+            if (readBuffSlab.capacity() == readBufferSize) {
+                readBuff = readBuffSlab;
+            } else {
+                // Hand the connection a view of exactly the size it asked for, so capacity() means what it expects
+                ((Buffer) readBuffSlab).limit(readBufferSize);
+                readBuff = readBuffSlab.slice();
+            }
+        }
+        return readBuff;
+    }
+
+    // Gives the read buffer back to the pool unless it still holds the start of a partially received message. Only
+    // called from the selector thread.
+    private void maybeReturnReadBuffer() {
+        if (readBuff != null && readBuff.position() == 0)
+            releaseReadBuffer();
+    }
+
+    // Gives the read buffer back to the pool whatever it holds. Only called from the selector thread, which is the only
+    // one reading into it, once the connection is closed. A handler closed from elsewhere whose key is never selected
+    // again keeps its buffer until it is garbage collected.
+    private void releaseReadBuffer() {
+        if (readBuff != null) {
+            readBufferPool.release(readBuffSlab);
+            readBuff = null;
+            readBuffSlab = null;
+        }
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closeCalled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     //对写感兴趣
-    private void setWriteOps() {
+    private void setWriteOps(boolean wakeup) {
         // Make sure we are registered to get updated when writing is available again
         key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-        // Refresh the selector to make sure it gets the new interestOps
-        key.selector().wakeup();
+        // Refresh the selector to make sure it gets the new interestOps. Not needed when we are the selector thread,
+        // as the new interestOps are picked up by the next select() anyway.
+        if (wakeup)
+            wakeupSelector();
+    }
+
+    // The interestOps must already be updated when this is called. If another wakeup is pending on our selector, the
+    // loop hasn't gone back into select() since it was requested, so it will see our change without a wakeup of its
+    // own.
+    private void wakeupSelector() {
+        AtomicBoolean wakeupPending = selectorWakeupPending;
+        if (wakeupPending == null || wakeupPending.compareAndSet(false, true))
+            key.selector().wakeup();
+    }
+
+    /**
+     * Shares the given "wakeup pending" flag with every other handler on the same selector, so that concurrent writers
+     * trigger a single selector wakeup between two selects. The selector loop must clear the flag each time
+     * {@code select()} returns.
+     */
+    void setSelectorWakeupPending(AtomicBoolean selectorWakeupPending) {
+        this.selectorWakeupPending = selectorWakeupPending;
+    }
+
+    /**
+     * Sets the maximum number of queued messages which are flushed to the socket with a single gathering write.
+     * A value of 1 writes every message with its own system call.
+     */
+    public void setWriteBatchSize(int writeBatchSize) {
+        checkArgument(writeBatchSize > 0 && writeBatchSize <= MAX_WRITE_BATCH_SIZE,
+                "writeBatchSize must be between 1 and %s: %s", MAX_WRITE_BATCH_SIZE, writeBatchSize);
+        lock.lock();
+        try {
+            writeBatch = new ByteBuffer[writeBatchSize];
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public ListenableFuture writeBytes(byte[] message) throws IOException {
+        // The caller keeps ownership of message, so queue a copy of it
+        return writeBuffer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+    }
+
+    /**
+     * <p>Sets the outbound water marks. Once more than {@code highWaterMark} bytes are queued the connection is told it
+     * is no longer writable via {@link StreamConnection#writabilityChanged(boolean)}, and it becomes writable again once
+     * the queue has drained to {@code lowWaterMark} bytes or less. Writes are still accepted while unwritable, up to
+     * the hard limit of one maximum sized message, beyond which the connection is closed.</p>
+     *
+     * <p>If {@code pauseReadsWhenUnwritable} is set, the handler also stops reading from the socket while it is
+     * unwritable, so a peer which doesn't read what we send can't make us queue ever more replies.</p>
+     */
+    public void setWriteBufferWaterMarks(long lowWaterMark, long highWaterMark, boolean pauseReadsWhenUnwritable) {
+        checkArgument(0 <= lowWaterMark && lowWaterMark <= highWaterMark,
+                "Need 0 <= lowWaterMark <= highWaterMark: %s, %s", lowWaterMark, highWaterMark);
+        lock.lock();
+        try {
+            this.lowWaterMark = lowWaterMark;
+            this.highWaterMark = highWaterMark;
+            this.pauseReadsWhenUnwritable = pauseReadsWhenUnwritable;
+            updateReadOps();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setReadsPaused(boolean paused) {
+        lock.lock();
+        try {
+            readsPaused = paused;
+            updateReadOps();
+        } catch (CancelledKeyException e) {
+            // The connection is closing, nothing left to read from
+            return;
+        } finally {
+            lock.unlock();
+        }
+        wakeupSelector();
+    }
+
+    // Called with the lock held. Reads are off while the connection paused them, or while unwritable if asked to.
+    private void updateReadOps() {
+        boolean reading = !readsPaused && (writable || !pauseReadsWhenUnwritable);
+        if (reading)
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        else
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    // Called with the lock held whenever the outbound queue changed size. Returns true if this flipped writable, in
+    // which case the caller has to tell the connection about it once the lock is released.
+    private boolean updateWritability() {
+        if (writable && bytesToWriteRemaining > highWaterMark) {
+            writable = false;
+            if (pauseReadsWhenUnwritable)
+                updateReadOps();
+            return true;
+        } else if (!writable && bytesToWriteRemaining <= lowWaterMark) {
+            writable = true;
+            if (pauseReadsWhenUnwritable)
+                updateReadOps();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public ListenableFuture writeBuffer(ByteBuffer buffer) throws IOException {
         boolean andUnlock = true;
+        boolean writtenThrough = false;
+        boolean writabilityChanged = false;
+        final SettableFuture<Object> future = SettableFuture.create();
         lock.lock();
         try {
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            int length = buffer.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            final SettableFuture<Object> future = SettableFuture.create();
-            //写的话
-            bytesToWrite.offer(new BytesAndFuture(ByteBuffer.wrap(Arrays.copyOf(message, message.length)), future));
-            bytesToWriteRemaining += message.length;
-            setWriteOps();
-            return future;
+            if (bytesToWrite.isEmpty()) {
+                // Nothing is queued ahead of us, so write straight through on the caller's thread. Usually the socket
+                // takes the whole message and neither the queue nor the selector get involved at all.
+                channel.write(buffer);
+                writtenThrough = !buffer.hasRemaining();
+            }
+            if (!writtenThrough) {
+                // Dump what is left of the message onto the write buffer and let the selector thread call
+                // tryWriteBytes once the socket has room again
+                //写的话，buffer的所有权已经转移给我们了，不需要再拷贝
+                bytesToWrite.offer(new BytesAndFuture(buffer, future));
+                bytesToWriteRemaining += buffer.remaining();
+                writabilityChanged = updateWritability();
+                setWriteOps(true);
+            }
         } catch (IOException e) {
             lock.unlock();
             andUnlock = false;
@@ -138,6 +345,11 @@ public class ConnectionHandler implements MessageWriteTarget {
             if (andUnlock)
                 lock.unlock();
         }
+        if (writtenThrough)
+            future.set(null);
+        if (writabilityChanged)
+            notifyWritability();
+        return future;
     }
 
     @Override
@@ -155,14 +367,25 @@ public class ConnectionHandler implements MessageWriteTarget {
 
     private void connectionClosed() {
         boolean callClosed = false;
+        List<BytesAndFuture> unwritten = null;
         lock.lock();
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            if (callClosed && !bytesToWrite.isEmpty()) {
+                unwritten = new ArrayList<>(bytesToWrite);
+                bytesToWrite.clear();
+                bytesToWriteRemaining = 0;
+            }
         } finally {
             lock.unlock();
         }
         if (callClosed) {
+            // Fail whatever never made it out, so that writers get their buffers back
+            if (unwritten != null) {
+                for (BytesAndFuture bytesAndFuture : unwritten)
+                    bytesAndFuture.future.setException(new ClosedChannelException());
+            }
             checkState(connectedHandlers == null || connectedHandlers.remove(this));
             connection.connectionClosed();
         }
@@ -202,10 +425,12 @@ public class ConnectionHandler implements MessageWriteTarget {
             if (key.isReadable()) { //缓冲区有数据了
                 // Do a socket read and invoke the connection's receiveBytes message
                 //从channel中读取数据，并写入到readBuff
-                int read = handler.channel.read(handler.readBuff);
+                ByteBuffer readBuff = handler.borrowReadBuffer();
+                int read = handler.channel.read(readBuff);
                 System.out.println("key.isReadable() " + read);
                 if (read == 0) {
                     //如果返回值为0，则可能是在等待写入操作，直接返回。
+                    handler.maybeReturnReadBuffer();
                     return; // Was probably waiting on a write
                 } else if (read == -1) { // Socket was closed
                     //该代码段中的key.cancel()方法用于取消与该SelectionKey关联的通道在选择器中的注册。调用此方法后，
@@ -222,14 +447,17 @@ public class ConnectionHandler implements MessageWriteTarget {
                 }
 
                 // "flip" the buffer - setting the limit to the current position and setting position to 0
-                ((Buffer) handler.readBuff).flip();
-                System.out.println("after flip readBuff, remaining bytes length : " + handler.readBuff.remaining());
+                ((Buffer) readBuff).flip();
+                System.out.println("after flip readBuff, remaining bytes length : " + readBuff.remaining());
                 // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
+                int bytesConsumed = checkNotNull(handler.connection).receiveBytes(readBuff);
+                checkState(readBuff.position() == bytesConsumed);
                 // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
                 // position)
-                handler.readBuff.compact();
+                readBuff.compact();
+                // Nothing left over means no partial message, so the buffer can go back to the pool until more
+                // bytes arrive
+                handler.maybeReturnReadBuffer();
             }
             if (key.isWritable()) {
                 handler.tryWriteBytes();
@@ -242,24 +470,43 @@ public class ConnectionHandler implements MessageWriteTarget {
 //            System.out.println(t.getMessage());*/
             t.printStackTrace();
             handler.closeConnection();
+        } finally {
+            // However the connection was closed, by the peer, a failed read or receiveBytes, or another thread, nothing
+            // reads into the buffer any more
+            if (handler != null && handler.isClosed())
+                handler.releaseReadBuffer();
         }
     }
 
     private void tryWriteBytes() throws IOException  {
+        boolean writabilityChanged;
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<BytesAndFuture> iterator = bytesToWrite.iterator();
-            while (iterator.hasNext()) {
-                BytesAndFuture bytesAndFuture = iterator.next();
-                bytesToWriteRemaining -= channel.write(bytesAndFuture.bytes);
-                //如果没有剩余的
-                if (!bytesAndFuture.bytes.hasRemaining()) {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, handing up to
+            // writeBatch.length queued messages to each gathering write so a burst of small messages costs a single
+            // system call.
+            while (!bytesToWrite.isEmpty()) {
+                int batchCount = 0;
+                for (BytesAndFuture bytesAndFuture : bytesToWrite) {
+                    if (batchCount == writeBatch.length)
+                        break;
+                    writeBatch[batchCount++] = bytesAndFuture.bytes;
+                }
+                bytesToWriteRemaining -= channel.write(writeBatch, 0, batchCount);
+                Arrays.fill(writeBatch, 0, batchCount, null);
+                // Complete the futures of every message which went out entirely, in queue order
+                Iterator<BytesAndFuture> iterator = bytesToWrite.iterator();
+                while (iterator.hasNext()) {
+                    BytesAndFuture bytesAndFuture = iterator.next();
+                    //如果没有剩余的
+                    if (bytesAndFuture.bytes.hasRemaining())
+                        break;
                     iterator.remove();
                     bytesAndFuture.future.set(null);
-                } else {
-                    //有剩余的，设置对写感兴趣
-                    setWriteOps();
+                }
+                if (!bytesToWrite.isEmpty() && bytesToWrite.peek().bytes.hasRemaining()) {
+                    //有剩余的，说明OS的缓冲区满了，设置对写感兴趣
+                    setWriteOps(false);
                     break;
                 }
             }
@@ -268,8 +515,29 @@ public class ConnectionHandler implements MessageWriteTarget {
                 //如果所有字节都已写入完成，则清除对写操作（OP_WRITE）的兴趣
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
             // Don't bother waking up the selector here, since we're just removing an op, not adding
+            writabilityChanged = updateWritability();
         } finally {
             lock.unlock();
         }
+        if (writabilityChanged)
+            notifyWritability();
+    }
+
+    // Tells the connection about the current writability if it hasn't been told yet. Called without the lock held
+    // after updateWritability() flipped it.
+    private void notifyWritability() {
+        synchronized (writabilityNotifyLock) {
+            boolean current;
+            lock.lock();
+            try {
+                current = writable;
+            } finally {
+                lock.unlock();
+            }
+            if (current != notifiedWritable) {
+                notifiedWritable = current;
+                connection.writabilityChanged(current);
+            }
+        }
     }
 }
@@ -29,21 +29,41 @@ public class DummySerializer extends MessageSerializer {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
     }
 
+    @Override
+    public Message deserialize(ByteBuffer in, BitcoinSerializer.BitcoinPacketHeader header) throws UnsupportedOperationException {
+        throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
+    }
+
     @Override
     public BitcoinSerializer.BitcoinPacketHeader deserializeHeader(ByteBuffer in) throws UnsupportedOperationException {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
     }
 
+    @Override
+    public BitcoinSerializer.BitcoinPacketHeader deserializeHeader(ByteBuffer in, BitcoinSerializer.BitcoinPacketHeader header) throws UnsupportedOperationException {
+        throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
+    }
+
     @Override
     public Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws UnsupportedOperationException {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
     }
 
+    @Override
+    public Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, SegmentedBuffer payload) throws UnsupportedOperationException {
+        throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
+    }
+
     @Override
     public boolean isParseRetainMode() {
         return false;
     }
 
+    @Override
+    public boolean isParseLazyMode() {
+        return false;
+    }
+
     @Override
     public AddressV1Message makeAddressV1Message(byte[] payloadBytes, int length) throws UnsupportedOperationException {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
@@ -93,4 +113,9 @@ public class DummySerializer extends MessageSerializer {
     public void serialize(Message message, OutputStream out) throws IOException {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
     }
+
+    @Override
+    public ByteBuffer serialize(Message message, ByteBufferPool pool) throws IOException {
+        throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
+    }
 }
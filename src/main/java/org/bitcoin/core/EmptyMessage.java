@@ -29,6 +29,11 @@ public abstract class EmptyMessage extends Message {
     protected final void bitcoinSerializeToStream(OutputStream stream) throws IOException {
     }
 
+    @Override
+    protected int computeSerializedSize() {
+        return 0;
+    }
+
     @Override
     protected void parse() throws ProtocolException {
     }
@@ -3,11 +3,11 @@ package org.bitcoin.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -30,8 +30,21 @@ public abstract class Message {
     // The raw message payload bytes themselves.
     protected byte[] payload;
 
+    // Set instead of payload while parsing straight from buffers, see Message(NetworkParameters, PayloadReader, ...).
+    // The read helpers go through it and keep cursor in step, so parse() works the same either way.
+    protected PayloadReader reader;
+
     protected boolean recached = false;
 
+    // False until parse() has run. A message created by a lazy parsing serializer only checks its framing up front,
+    // see parseLite() and maybeParse().
+    protected boolean parsed = false;
+
+    // The checksum from the header this message arrived with, kept while payload still holds exactly the bytes it
+    // covers, see isRelayable()
+    private int payloadChecksum;
+    private boolean hasPayloadChecksum = false;
+
     protected MessageSerializer serializer;
 
     protected NetworkParameters params;
@@ -62,13 +75,19 @@ public abstract class Message {
         this.cursor = this.offset = offset;
         this.length = length;
 
-        parse();
+        if (serializer.isParseLazyMode()) {
+            parseLite();
+        } else {
+            parse();
+            parsed = true;
+        }
 
         if (this.length == UNKNOWN_LENGTH && !(this instanceof UnknownMessage))
             checkState(false, "Length field has not been set in constructor for %s after parse.",
                     getClass().getSimpleName());
 
-        if (!serializer.isParseRetainMode())
+        // An unparsed message still needs its bytes for maybeParse()
+        if (parsed && !serializer.isParseRetainMode())
             this.payload = null;
     }
 
@@ -76,10 +95,73 @@ public abstract class Message {
         this(params, payload, offset, params.getDefaultSerializer(), UNKNOWN_LENGTH);
     }
 
+    /**
+     * Parses a message straight from the buffers the reader is positioned on, without copying its payload into an
+     * array first. As the buffers belong to the caller nothing is retained and parsing is never lazy, whatever the
+     * serializer's modes.
+     *
+     * @param params NetworkParameters object.
+     * @param reader cursor positioned at the first payload byte. It is advanced past the message.
+     * @param serializer the serializer to use for this message.
+     * @param length The length of message payload if known, otherwise Message.UNKNOWN_LENGTH
+     * @throws ProtocolException
+     */
+    protected Message(NetworkParameters params, PayloadReader reader, MessageSerializer serializer, int length) throws ProtocolException {
+        this.serializer = serializer;
+        this.params = params;
+        this.reader = reader;
+        this.cursor = this.offset = 0;
+        this.length = length;
+        try {
+            parse();
+            parsed = true;
+        } finally {
+            this.reader = null;
+        }
+
+        if (this.length == UNKNOWN_LENGTH)
+            checkState(false, "Length field has not been set in constructor for %s after parse.",
+                    getClass().getSimpleName());
+    }
+
     // These methods handle the serialization/deserialization using the custom Bitcoin protocol.
 
     protected abstract void parse() throws ProtocolException;
 
+    /**
+     * <p>Called instead of {@link #parse()} when the serializer is in lazy parse mode. Subclasses which support lazy
+     * parsing override this to only validate the framing and set {@link #length}, leaving the fields to be filled in
+     * by {@link #maybeParse()} the first time they are needed.</p>
+     *
+     * <p>The default parses everything straight away.</p>
+     */
+    protected void parseLite() throws ProtocolException {
+        parse();
+        parsed = true;
+    }
+
+    /**
+     * Runs the full {@link #parse()} if it hasn't happened yet. Lazily parsed messages must call this at the start of
+     * every method which reads or changes their fields.
+     */
+    protected void maybeParse() throws ProtocolException {
+        if (parsed || payload == null)
+            return;
+        cursor = offset;
+        parse();
+        parsed = true;
+        if (!serializer.isParseRetainMode())
+            payload = null;
+    }
+
+    /**
+     * Returns whether the fields of this message have been parsed, which is always the case unless it came from a lazy
+     * parsing serializer and none of them has been accessed yet.
+     */
+    public boolean isParsed() {
+        return parsed;
+    }
+
     /**
      * <p>To be called before any change of internal values including any setters. This ensures any cached byte array is
      * removed.</p>
@@ -87,8 +169,32 @@ public abstract class Message {
      * invalidated unless they are also modified internally.</p>
      */
     protected void unCache() {
+        // The fields have to be filled in before the bytes they would be parsed from go away
+        maybeParse();
         payload = null;
         recached = false;
+        hasPayloadChecksum = false;
+    }
+
+    /**
+     * Returns whether this message still holds the exact payload it was received with, together with that payload's
+     * checksum. Sending such a message on, for example gossiping a received address message to other peers, copies
+     * those bytes and checksum into the new frame instead of serializing and hashing the message again. This is only
+     * ever the case for messages received by a serializer in parse retain mode which haven't been changed since.
+     */
+    public boolean isRelayable() {
+        return hasPayloadChecksum && payload != null;
+    }
+
+    // Called by the serializer right after parsing, when payload is the whole of the received payload
+    void retainPayloadChecksum(int checksum) {
+        payloadChecksum = checksum;
+        hasPayloadChecksum = true;
+    }
+
+    int getPayloadChecksum() {
+        checkState(isRelayable());
+        return payloadChecksum;
     }
 
     protected void adjustLength(int newArraySize, int adjustment) {
@@ -174,13 +280,18 @@ public abstract class Message {
             return buf;
         }
 
-        // No cached array available so serialize parts by stream.
-        ByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(length < 32 ? 32 : length + 32);
+        // No cached array available so serialize parts by writer, into an exactly sized buffer if we can tell the size.
+        int size = computeSerializedSize();
+        PayloadWriter writer = new PayloadWriter(size != UNKNOWN_LENGTH ? size : length < 32 ? 32 : length + 32);
         try {
-            bitcoinSerializeToStream(stream);
+            bitcoinSerializeToWriter(writer);
         } catch (IOException e) {
-            // Cannot happen, we are serializing to a memory stream.
+            // Cannot happen, we are serializing to memory.
         }
+        // A buffer sized exactly for the message is full now, so its array is handed over as is rather than copied
+        ByteBuffer written = writer.buffer();
+        byte[] bytes = written.hasArray() && written.arrayOffset() == 0 && written.position() == written.array().length
+                ? written.array() : writer.toByteArray();
 
         if (serializer.isParseRetainMode()) {
             // A free set of steak knives!
@@ -195,7 +306,7 @@ public abstract class Message {
             // 释放对较大的字节数组的引用，以便更容易进行垃圾回收，并防止重复序列化。
             // 这个方法在计算默克尔根之前经常被调用，而默克尔根的计算通常在块序列化之前发生。
             // 如果不进行缓存，内部序列化将会发生第二次，而且每次序列化消息时都会发生
-            payload = stream.toByteArray();
+            payload = bytes;
             cursor = cursor - offset;
             offset = 0;
             recached = true;
@@ -204,10 +315,9 @@ public abstract class Message {
         }
         // Record length. If this Message wasn't parsed from a byte stream it won't have length field
         // set (except for static length message types).  Setting it makes future streaming more efficient
-        // because we can preallocate the ByteArrayOutputStream buffer and avoid resizing.
-        byte[] buf = stream.toByteArray();
-        length = buf.length;
-        return buf;
+        // because we can preallocate the writer's buffer and avoid resizing.
+        length = bytes.length;
+        return bytes;
     }
 
     /**
@@ -223,11 +333,62 @@ public abstract class Message {
             return;
         }
 
-        bitcoinSerializeToStream(stream);
+        int size = computeSerializedSize();
+        PayloadWriter writer = new PayloadWriter(size != UNKNOWN_LENGTH ? size : length == UNKNOWN_LENGTH ? 256 : length);
+        bitcoinSerializeToWriter(writer);
+        ByteBuffer buffer = writer.buffer();
+        stream.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+    }
+
+    /**
+     * Returns the number of bytes {@link #bitcoinSerialize()} produces. This is cheap for messages with cached bytes
+     * or which implement {@link #computeSerializedSize()}, the others are serialized to find out.
+     */
+    public final int serializedSize() {
+        int size = knownSerializedSize();
+        return size != UNKNOWN_LENGTH ? size : unsafeBitcoinSerialize().length;
+    }
+
+    // The serialized size if it can be had without serializing, otherwise UNKNOWN_LENGTH
+    final int knownSerializedSize() {
+        if (payload != null && length != UNKNOWN_LENGTH)
+            return length;
+        return computeSerializedSize();
     }
 
     /**
-     * Serializes this message to the provided stream. If you just want the raw bytes use bitcoinSerialize().
+     * Computes the number of bytes {@link #bitcoinSerializeToWriter(PayloadWriter)} writes from the fields, including
+     * any var int length prefixes, without serializing anything. Returns {@link #UNKNOWN_LENGTH} by default, for
+     * messages which don't implement it.
+     */
+    protected int computeSerializedSize() {
+        return UNKNOWN_LENGTH;
+    }
+
+    /**
+     * Serialize this message to the provided writer using the bitcoin wire format.
+     */
+    public final void bitcoinSerialize(PayloadWriter writer) throws IOException {
+        // 1st check for cached bytes.
+        if (payload != null && length != UNKNOWN_LENGTH) {
+            writer.writeBytes(payload, offset, length);
+            return;
+        }
+
+        bitcoinSerializeToWriter(writer);
+    }
+
+    /**
+     * Serializes this message to the provided writer. Messages should override this, the default writes whatever
+     * {@link #bitcoinSerializeToStream(OutputStream)} produces through an adapter.
+     */
+    protected void bitcoinSerializeToWriter(PayloadWriter writer) throws IOException {
+        bitcoinSerializeToStream(writer.asOutputStream());
+    }
+
+    /**
+     * Serializes this message to the provided stream. Only messages which haven't been ported to
+     * {@link #bitcoinSerializeToWriter(PayloadWriter)} override this.
      */
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         log.error("Error: {} class has not implemented bitcoinSerializeToStream method.  Generating message with no payload", getClass());
@@ -251,6 +412,10 @@ public abstract class Message {
     }
 
     protected long readUint32() throws ProtocolException {
+        if (reader != null) {
+            cursor += 4;
+            return reader.readUint32();
+        }
         try {
             long u = Utils.readUint32(payload, cursor);
             cursor += 4;
@@ -261,6 +426,10 @@ public abstract class Message {
     }
 
     protected long readInt64() throws ProtocolException {
+        if (reader != null) {
+            cursor += 8;
+            return reader.readInt64();
+        }
         try {
             long u = Utils.readInt64(payload, cursor);
             cursor += 8;
@@ -280,6 +449,12 @@ public abstract class Message {
     }
 
     protected VarInt readVarInt(int offset) throws ProtocolException {
+        if (reader != null) {
+            reader.skip(offset);
+            VarInt varint = reader.readVarInt();
+            cursor += offset + varint.getOriginalSizeInBytes();
+            return varint;
+        }
         try {
             VarInt varint = new VarInt(payload, cursor + offset);
             cursor += offset + varint.getOriginalSizeInBytes();
@@ -290,13 +465,18 @@ public abstract class Message {
     }
 
     private void checkReadLength(int length) throws ProtocolException {
-        if ((length > MAX_SIZE) || (cursor + length > payload.length)) {
+        int available = reader != null ? reader.remaining() : payload.length - cursor;
+        if ((length > MAX_SIZE) || (length > available)) {
             throw new ProtocolException("Claimed value length too large: " + length);
         }
     }
 
     protected byte[] readBytes(int length) throws ProtocolException {
         checkReadLength(length);
+        if (reader != null) {
+            cursor += length;
+            return reader.readBytes(length);
+        }
         try {
             byte[] b = new byte[length];
             System.arraycopy(payload, cursor, b, 0, length);
@@ -309,9 +489,24 @@ public abstract class Message {
 
     protected byte readByte() throws ProtocolException {
         checkReadLength(1);
+        if (reader != null) {
+            cursor++;
+            return reader.readByte();
+        }
         return payload[cursor++];
     }
 
+    protected int readUint16BE() throws ProtocolException {
+        checkReadLength(2);
+        if (reader != null) {
+            cursor += 2;
+            return reader.readUint16BE();
+        }
+        int u = Utils.readUint16BE(payload, cursor);
+        cursor += 2;
+        return u;
+    }
+
     protected byte[] readByteArray() throws ProtocolException {
         final int length = readVarInt().intValue();
         return readBytes(length);
@@ -329,6 +524,8 @@ public abstract class Message {
     }
 
     protected boolean hasMoreBytes() {
+        if (reader != null)
+            return reader.hasRemaining();
         return cursor < payload.length;
     }
 
@@ -23,22 +23,45 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserialize(ByteBuffer in) throws ProtocolException, IOException, UnsupportedOperationException;
 
+    /**
+     * Reads a message from the given ByteBuffer and returns it, decoding its header into the given instance rather
+     * than allocating a new one. Lets a connection reuse one header for all its messages.
+     */
+    public abstract Message deserialize(ByteBuffer in, BitcoinSerializer.BitcoinPacketHeader header) throws ProtocolException, IOException, UnsupportedOperationException;
+
     /**
      * Deserializes only the header in case packet meta data is needed before decoding
      * the payload. This method assumes you have already called seekPastMagicBytes()
      */
     public abstract BitcoinSerializer.BitcoinPacketHeader deserializeHeader(ByteBuffer in) throws ProtocolException, IOException, UnsupportedOperationException;
 
+    /**
+     * Like {@link #deserializeHeader(ByteBuffer)}, but decodes into the given instance and returns it.
+     */
+    public abstract BitcoinSerializer.BitcoinPacketHeader deserializeHeader(ByteBuffer in, BitcoinSerializer.BitcoinPacketHeader header) throws ProtocolException, IOException, UnsupportedOperationException;
+
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserialize a payload which was reassembled into chunks, see {@link SegmentedBuffer}. The payload must be
+     * complete. The payload of an unknown command is verified and then dropped with the chunks, rather than joined
+     * into one array, so the returned {@link UnknownMessage} doesn't hold it.
+     */
+    public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, SegmentedBuffer payload) throws ProtocolException, UnsupportedOperationException;
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
     public abstract boolean isParseRetainMode();
 
+    /**
+     * Whether the serializer will produce lazily parsed Messages, see {@link Message#isParsed()}
+     */
+    public abstract boolean isParseLazyMode();
+
     /**
      * Make an address message from the payload. Extension point for alternative
      * serialization format support.
@@ -150,4 +173,16 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
+
+    /**
+     * Serializes message, header included, into a single buffer taken from the given pool. The returned buffer is
+     * positioned at the start of the header and owned by the caller, who should release it back to the pool once
+     * done with it.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization. This can occur either because it's a dummy
+     * serializer (i.e. for messages with no network parameters), or because
+     * it does not support serializing the given message.
+     */
+    public abstract ByteBuffer serialize(Message message, ByteBufferPool pool) throws IOException, UnsupportedOperationException;
 }
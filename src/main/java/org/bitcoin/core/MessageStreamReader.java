@@ -0,0 +1,155 @@
+package org.bitcoin.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Reads a sequence of wire format messages, each with its header, from a channel or stream, for example a capture of
+ * peer traffic on disk. Messages are decoded one at a time as the iterator is advanced, so memory use is bounded by
+ * the read buffer plus the message being decoded, however long the input is.</p>
+ *
+ * <p>Like {@link PeerSocketHandler}, garbage between messages is skipped. Messages which don't fit the read buffer are
+ * reassembled into pooled chunks and hashed as they are read, see {@link SegmentedBuffer}. A message cut off by the
+ * end of the input fails with a {@link ProtocolException}, and I/O errors surface as {@link UncheckedIOException}s from
+ * {@link #hasNext()} and {@link #next()}.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class MessageStreamReader implements Iterator<Message>, Closeable {
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int HEADER_LENGTH = 4 + BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH;
+
+    private final BitcoinSerializer serializer;
+    private final ReadableByteChannel channel;
+    private final int magic;
+    // Always in read mode: the bytes between position and limit haven't been consumed yet
+    private final ByteBuffer buffer;
+    private final BitcoinSerializer.BitcoinPacketHeader header = new BitcoinSerializer.BitcoinPacketHeader();
+    private final ByteBufferPool chunkPool = new ByteBufferPool(CHUNK_SIZE, 16, false);
+    private final MessageDigest digest = Sha256Hash.newDigest();
+
+    private Message next;
+    private boolean endOfStream = false;
+
+    public MessageStreamReader(BitcoinSerializer serializer, ReadableByteChannel channel) {
+        this(serializer, channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MessageStreamReader(BitcoinSerializer serializer, InputStream stream) {
+        this(serializer, Channels.newChannel(stream), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the size of the read buffer. Messages larger than this are reassembled in chunks.
+     */
+    public MessageStreamReader(BitcoinSerializer serializer, ReadableByteChannel channel, int bufferSize) {
+        checkArgument(bufferSize >= HEADER_LENGTH, "bufferSize must hold at least a header: %s", bufferSize);
+        this.serializer = checkNotNull(serializer);
+        this.channel = checkNotNull(channel);
+        this.magic = (int) serializer.getParameters().getPacketMagic();
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        ((Buffer) buffer).flip();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !endOfStream) {
+            try {
+                next = readNext();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (next == null)
+                endOfStream = true;
+        }
+        return next != null;
+    }
+
+    @Override
+    public Message next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Message message = next;
+        next = null;
+        return message;
+    }
+
+    /** Closes the underlying channel. */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Returns the next message, or null at the end of the input
+    private Message readNext() throws IOException {
+        while (true) {
+            int start = buffer.position();
+            serializer.seekPastMagicBytes(buffer);
+            int afterMagic = buffer.position();
+            boolean magicFound = afterMagic - start >= 4 && buffer.getInt(afterMagic - 4) == magic;
+            if (magicFound && buffer.remaining() >= BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH) {
+                serializer.deserializeHeader(buffer, header);
+                int size = header.getSize();
+                if (buffer.remaining() >= size)
+                    return serializer.deserializePayload(header, buffer);
+                if (HEADER_LENGTH + size > buffer.capacity())
+                    return readLarge();
+            }
+            if (magicFound) {
+                // Start over from the magic once more bytes are in
+                ((Buffer) buffer).position(afterMagic - 4);
+            } else {
+                // No magic, but the last few bytes may be the start of one
+                ((Buffer) buffer).position(Math.max(start, buffer.limit() - 3));
+            }
+            if (!fill()) {
+                if (magicFound)
+                    throw new ProtocolException("Message truncated by the end of the stream");
+                return null;
+            }
+        }
+    }
+
+    // Reads a message larger than the buffer, whose header has just been decoded
+    private Message readLarge() throws IOException {
+        SegmentedBuffer payload = new SegmentedBuffer(chunkPool, header.getSize(), digest);
+        try {
+            payload.append(buffer);
+            while (!payload.isComplete()) {
+                if (!fill())
+                    throw new ProtocolException("Message truncated by the end of the stream");
+                payload.append(buffer);
+            }
+            return serializer.deserializePayload(header, payload);
+        } finally {
+            payload.release();
+        }
+    }
+
+    // Moves the unconsumed bytes to the front and reads more behind them. Returns false at the end of the input.
+    private boolean fill() throws IOException {
+        buffer.compact();
+        try {
+            int read;
+            do {
+                read = channel.read(buffer);
+            } while (read == 0 && buffer.hasRemaining());
+            return read != -1;
+        } finally {
+            ((Buffer) buffer).flip();
+        }
+    }
+}
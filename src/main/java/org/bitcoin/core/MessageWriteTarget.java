@@ -3,6 +3,7 @@ package org.bitcoin.core;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface MessageWriteTarget {
     /**
@@ -16,6 +17,15 @@ public interface MessageWriteTarget {
      * 因为写是主动的，read不是主动的，所以不需要方法，妙啊
      */
     ListenableFuture writeBytes(byte[] message) throws IOException;
+    /**
+     * 与writeBytes相同，但是不做防御性的拷贝，buffer的所有权转移给write target。
+     *
+     * Writes the remaining bytes of the given buffer to the remote server, like {@link #writeBytes(byte[])} but without
+     * copying them first. Ownership of the buffer passes to this write target: the caller must not read, modify or
+     * recycle it until the returned future completes, successfully or not. The buffer may be a heap or a direct
+     * buffer and may come from a pool, in which case the caller can hand it back to its pool once the future is done.
+     */
+    ListenableFuture writeBuffer(ByteBuffer buffer) throws IOException;
     /**
      *
      * 该函数关闭与服务器的连接，并在处理网络的线程上触发connectionClosed()事件，所有回调都在该线程上执行。
@@ -26,4 +36,10 @@ public interface MessageWriteTarget {
      * 因为关闭链接也是主动的，建立链接是被动的，所以不需要方法
      */
     void closeConnection();
+    /**
+     * Stops reading from the remote server while paused, so a connection which can't keep up with the bytes it has
+     * already received isn't handed any more. Bytes read before the pause are still delivered. May be called from any
+     * thread.
+     */
+    void setReadsPaused(boolean paused);
 }
\ No newline at end of file
@@ -18,14 +18,35 @@ public class NioClient implements MessageWriteTarget {
     private static final Logger log = LoggerFactory.getLogger(NioClient.class);
 
     private final Handler handler;
-    private final NioClientManager manager = new NioClientManager();
+    private final SharedClientManager sharedManager;
 
+    /**
+     * Creates a new client to the given server address, running on a {@link NioClientManager} of its own which is
+     * stopped again once the connection closes.
+     */
     public NioClient(final SocketAddress serverAddress, final StreamConnection parser,
                      final int connectTimeoutMillis) throws IOException {
-        manager.startAsync();
-        manager.awaitRunning();
-        handler = new Handler(parser, connectTimeoutMillis);
-        Futures.addCallback(manager.openConnection(serverAddress, handler), new FutureCallback<SocketAddress>() {
+        this(serverAddress, parser, connectTimeoutMillis, new SharedClientManager());
+    }
+
+    /**
+     * Creates a new client to the given server address, running on the given shared manager. The client holds a
+     * reference to the manager from now until its connection closes, so the manager runs for as long as any of the
+     * clients sharing it are connected or connecting.
+     */
+    public NioClient(final SocketAddress serverAddress, final StreamConnection parser,
+                     final int connectTimeoutMillis, SharedClientManager sharedManager) throws IOException {
+        this.sharedManager = sharedManager;
+        ClientConnectionManager manager = sharedManager.retain();
+        handler = new Handler(parser);
+        ListenableFuture<SocketAddress> connectFuture;
+        try {
+            connectFuture = manager.openConnection(serverAddress, handler, connectTimeoutMillis);
+        } catch (RuntimeException e) {
+            handler.releaseManager();
+            throw e;
+        }
+        Futures.addCallback(connectFuture, new FutureCallback<SocketAddress>() {
             @Override
             public void onSuccess(SocketAddress result) {
                 System.out.println(StringFormatter.format("Connect to {} result" + result.toString()));
@@ -34,6 +55,9 @@ public class NioClient implements MessageWriteTarget {
             @Override
             public void onFailure(Throwable t) {
                 System.out.println(StringFormatter.format("Connect to {} failed: {}", serverAddress, Throwables.getRootCause(t)));
+                // Not every failure reaches the handler (eg the connect couldn't even be started), make sure the manager
+                // reference is given back either way
+                handler.connectionClosed();
             }
         }, MoreExecutors.directExecutor());
     }
@@ -49,26 +73,36 @@ public class NioClient implements MessageWriteTarget {
         return handler.writeTarget.writeBytes(message);
     }
 
-    class Handler extends AbstractTimeoutHandler implements StreamConnection {
+    @Override
+    public synchronized ListenableFuture writeBuffer(ByteBuffer buffer) throws IOException {
+        return handler.writeTarget.writeBuffer(buffer);
+    }
+
+    @Override
+    public void setReadsPaused(boolean paused) {
+        handler.writeTarget.setReadsPaused(paused);
+    }
+
+    // The connect timeout is enforced by the manager, which also calls connectionClosed() if it expires
+    class Handler implements StreamConnection {
         private final StreamConnection upstreamConnection;
         private MessageWriteTarget writeTarget;
-        private boolean closeOnOpen = false;
         private boolean closeCalled = false;
-        Handler(StreamConnection upstreamConnection, int connectTimeoutMillis) {
+        private boolean managerReleased = false;
+        Handler(StreamConnection upstreamConnection) {
             this.upstreamConnection = upstreamConnection;
-            setSocketTimeout(connectTimeoutMillis);
-            setTimeoutEnabled(true);
         }
 
-        @Override
-        protected synchronized void timeoutOccurred() {
-            closeOnOpen = true;
-            connectionClosed();
+        synchronized void releaseManager() {
+            if (!managerReleased) {
+                managerReleased = true;
+                sharedManager.release();
+            }
         }
 
         @Override
         public synchronized void connectionClosed() {
-            manager.stopAsync();
+            releaseManager();
             if (!closeCalled) {
                 closeCalled = true;
                 upstreamConnection.connectionClosed();
@@ -77,8 +111,7 @@ public class NioClient implements MessageWriteTarget {
 
         @Override
         public synchronized void connectionOpened() {
-            if (!closeOnOpen)
-                upstreamConnection.connectionOpened();
+            upstreamConnection.connectionOpened();
         }
 
         @Override
@@ -88,14 +121,13 @@ public class NioClient implements MessageWriteTarget {
 
         @Override
         public synchronized void setWriteTarget(MessageWriteTarget writeTarget) {
-            if (closeOnOpen) {
-                writeTarget.closeConnection();
-            }
-            else {
-                setTimeoutEnabled(false);
-                this.writeTarget = writeTarget;
-                upstreamConnection.setWriteTarget(writeTarget);
-            }
+            this.writeTarget = writeTarget;
+            upstreamConnection.setWriteTarget(writeTarget);
+        }
+
+        @Override
+        public void writabilityChanged(boolean writable) {
+            upstreamConnection.writabilityChanged(writable);
         }
 
         @Override
@@ -11,6 +11,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -18,135 +19,302 @@ import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link ClientConnectionManager} which drives its connections from one or more selector loops.</p>
+ *
+ * <p>By default a single selector thread handles every connection. When constructed with a larger selector count,
+ * connections are sharded across that many loops (for example one per core, see
+ * {@link Runtime#availableProcessors()}). Each connection stays pinned to the loop it was opened on for its whole
+ * life, and {@link #openConnection(SocketAddress, StreamConnection)} always picks the least-loaded loop. If any
+ * loop dies the others stop with it, failing every connect that hadn't completed yet.</p>
+ */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager{
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
-    private final Selector selector;
-    private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+    private final SelectorLoop[] loops;
+    // Set when any loop exits, so that the remaining loops shut down with it rather than outliving the service.
+    private volatile boolean loopExited = false;
+
+    private volatile long lowWaterMark = ConnectionHandler.DEFAULT_LOW_WATER_MARK;
+    private volatile long highWaterMark = ConnectionHandler.DEFAULT_HIGH_WATER_MARK;
+    private volatile boolean pauseReadsWhenUnwritable = false;
 
     public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
-        }
+        this(1);
+    }
+
+    /**
+     * Creates a manager which shards its connections across the given number of selector threads.
+     *
+     * @param selectorCount the number of selector loops to run, at least one
+     */
+    public NioClientManager(int selectorCount) {
+        checkArgument(selectorCount > 0, "selectorCount must be positive: %s", selectorCount);
+        loops = new SelectorLoop[selectorCount];
+        for (int i = 0; i < selectorCount; i++)
+            loops[i] = new SelectorLoop();
     }
 
     @Override
     protected void run() throws Exception {
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        // The service thread runs the first loop itself, every further loop gets a thread of its own.
+        List<Thread> loopThreads = new ArrayList<>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], serviceName() + " selector " + i);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+            loopThreads.add(thread);
+        }
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
+            loops[0].run();
+        } finally {
+            loopExited = true;
+            for (SelectorLoop loop : loops)
+                loop.selector.wakeup();
+            for (Thread thread : loopThreads)
+                thread.join();
+        }
+    }
 
-                // 从newConnectionChannels队列中获取连接通道，然后将其注册到选择器（selector）中以进行连接操作。
-                // 如果在注册之前通道已关闭，则会捕获ClosedChannelException异常并打印警告信息。
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        System.out.println("SocketChannel was closed before it could be registered");
+    /**
+     * One selector together with the connections registered on it. A loop is only ever run by a single thread, so
+     * everything touching its selector keys happens on that thread.
+     */
+    private class SelectorLoop implements Runnable {
+        final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
+        private final Selector selector;
+        private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+        // Connections handed to this loop which haven't finished (or failed) their connect yet.
+        private final AtomicInteger pendingConnects = new AtomicInteger();
+        // True while a wakeup has been requested which select() hasn't returned for yet, see wakeup()
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        // Set once this loop has stopped, after which nothing else polls newConnectionChannels
+        private volatile boolean exited = false;
+        // Registered connects with a timeout, soonest deadline first. Only touched by the loop's own thread.
+        private final PriorityQueue<PendingConnect> connectDeadlines = new PriorityQueue<>(11, new Comparator<PendingConnect>() {
+            @Override
+            public int compare(PendingConnect a, PendingConnect b) {
+                return Long.compare(a.deadline, b.deadline);
+            }
+        });
+
+        SelectorLoop() {
+            try {
+                selector = SelectorProvider.provider().openSelector();
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Shouldn't ever happen
+            }
+        }
+
+        /**
+         * Wakes up the selector unless a wakeup is already pending. Anything the caller changed before calling this
+         * is seen by the loop either way, as it only clears the flag after select() returns.
+         */
+        void wakeup() {
+            if (wakeupPending.compareAndSet(false, true))
+                selector.wakeup();
+        }
+
+        /** The number of connections this loop is currently responsible for, including those still connecting. */
+        int load() {
+            return pendingConnects.get() + connectedHandlers.size();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning() && !loopExited) {
+                    PendingConnect conn;
+
+                    // 从newConnectionChannels队列中获取连接通道，然后将其注册到选择器（selector）中以进行连接操作。
+                    // 如果在注册之前通道已关闭，则会捕获ClosedChannelException异常并打印警告信息。
+                    while ((conn = newConnectionChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                            key.attach(conn);
+                            conn.key = key;
+                            if (conn.deadline != 0)
+                                connectDeadlines.add(conn);
+                        } catch (ClosedChannelException e) {
+                            pendingConnects.decrementAndGet();
+                            System.out.println("SocketChannel was closed before it could be registered");
+                        }
                     }
-                }
 
-                //通过使用 Selector，可以在一个线程中同时处理多个通道的 I/O 事件，而无需为每个通道分配一个独立的线程。
-                //selector.select() 方法会阻塞当前线程，直到至少有一个注册的通道有就绪事件发生，或者超时时间到达。
-                selector.select();
+                    //通过使用 Selector，可以在一个线程中同时处理多个通道的 I/O 事件，而无需为每个通道分配一个独立的线程。
+                    //selector.select() 方法会阻塞当前线程，直到至少有一个注册的通道有就绪事件发生，或者超时时间到达。
+                    long selectTimeout = expireConnects();
+                    if (selectTimeout > 0)
+                        selector.select(selectTimeout);
+                    else
+                        selector.select();
+                    wakeupPending.set(false);
 
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
 
-                //遍历SelectionKey，已经就绪的key
-                while (keyIterator.hasNext()) {
-                    //按顺序获取其中一个
-                    SelectionKey key = keyIterator.next();
+                    //遍历SelectionKey，已经就绪的key
+                    while (keyIterator.hasNext()) {
+                        //按顺序获取其中一个
+                        SelectionKey key = keyIterator.next();
 
-                    //遍历了就从迭代里删除
-                    keyIterator.remove();
+                        //遍历了就从迭代里删除
+                        keyIterator.remove();
 
-                    //处理SelectionKey
-                    handleKey(key);
+                        //处理SelectionKey
+                        handleKey(key);
+                    }
                 }
-            }
-        } catch (Exception e) {
-            System.out.println("Error trying to open/read from connection: " + e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
+            } catch (Exception e) {
+                System.out.println("Error trying to open/read from connection: " + e);
+            } finally {
+                exited = true;
+                loopExited = true;
+                // Take the other loops down with this one, rather than leaving them to pick connects nobody finishes
+                for (SelectorLoop loop : loops)
+                    loop.selector.wakeup();
+                // Go through and close everything, without letting IOExceptions get in our way
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        System.out.println("close selection key channel");
+                        key.channel().close();
+                    } catch (IOException e) {
+                        System.out.println("Error closing channel" + e);
+                    }
+                    key.cancel();
+                    if (key.attachment() instanceof ConnectionHandler)
+                        ConnectionHandler.handleKey(key); // Close connection if relevant
+                    else if (key.attachment() instanceof PendingConnect)
+                        failConnect((PendingConnect) key.attachment());
+                }
+                connectDeadlines.clear();
+                failNewConnects();
                 try {
-                    System.out.println("close selection key channel");
-                    key.channel().close();
+                    selector.close();
                 } catch (IOException e) {
-                    System.out.println("Error closing channel" + e);
+                    System.out.println("Error closing client manager selector" + e);
                 }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
             }
+        }
+
+        /**
+         * Fails every connect still queued for this loop. Called by the loop as it exits, and by
+         * {@link #openConnection(SocketAddress, StreamConnection, int)} when it queued a connect just as the loop exited.
+         */
+        void failNewConnects() {
+            PendingConnect conn;
+            while ((conn = newConnectionChannels.poll()) != null)
+                failConnect(conn);
+        }
+
+        // Fails a connect this loop will never finish, as it has exited
+        private void failConnect(PendingConnect conn) {
             try {
-                selector.close();
+                conn.sc.close();
             } catch (IOException e) {
-                System.out.println("Error closing client manager selector" + e);
+                System.out.println("Error closing channel" + e);
             }
+            pendingConnects.decrementAndGet();
+            // A connect which already failed in handleKey() has no future left
+            if (conn.future != null && conn.future.setException(new IOException("Selector loop exited before connecting to " + conn.address)))
+                conn.connection.connectionClosed();
         }
-    }
 
-    // Handle a SelectionKey which was selected
-    //在Java NIO中，Channel的就绪状态表示该通道已经准备好进行某种I/O操作。就绪状态取决于通道的类型和具体的操作。
-    //以下是一些常见的Channel就绪状态及其对应的情况：
-    //OP_READ（可读就绪）：当通道中有数据可供读取时，通道会被标记为可读就绪状态。例如，在SocketChannel中，当远程主机发送数据到通道时，该通道就会变为可读就绪状态。
-    //OP_WRITE（可写就绪）：当可以向通道写入数据时，通道会被标记为可写就绪状态。例如，在SocketChannel中，当缓冲区有足够的空间可以写入数据时，该通道就会变为可写就绪状态。
-    //OP_CONNECT（连接就绪）：当SocketChannel正在进行非阻塞连接时，通道会被标记为连接就绪状态。当连接已经建立或正在建立中时，通道就会变为连接就绪状态。
-    //OP_ACCEPT（接收就绪）：在ServerSocketChannel上调用accept()方法时，如果有客户端连接请求到达，该通道会被标记为接收就绪状态。
-    //可以使用SelectionKey对象的isReadable()、isWritable()、isConnectable()和isAcceptable()方法来检查通道的就绪状态。
-    //请注意，就绪状态是针对非阻塞I/O操作的，它允许您在没有阻塞的情况下选择处理已经准备好的操作。
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-
-        // 在Java NIO中，当SocketChannel正在进行非阻塞连接时，通道会被标记为连接就绪状态是因为非阻塞连接的过程是异步的。
-        // 当我们调用SocketChannel的connect()方法进行连接时，它会立即返回，而不会等待连接完成。在后台，操作系统会继续尝试建立连接，
-        // 同时SocketChannel会返回一个SelectionKey，标记为"连接就绪"，以便我们可以通过选择器（Selector）来检查连接是否已经建立成功。
-        //
-        // 在选择器的select()方法中，我们可以使用SelectionKey的isConnectable()方法来检查连接是否已经建立成功。
-        // 如果返回true，表示连接已经就绪，我们可以调用finishConnect()方法来完成连接过程。
-        // 这种方式允许我们在连接过程中执行其他操作，而不会阻塞线程，提高了程序的并发性能。
-
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            PendingConnect data = (PendingConnect) key.attachment();
-            StreamConnection connection = data.connection;
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
-            try {
-                //链接确实建立
-                if (sc.finishConnect()) {
-                    //从SocketChannel中获取远程socket地址
-                    System.out.println("Connected to {}" + sc.socket().getRemoteSocketAddress());
-                    //感兴趣的事件中，再加上读时间，并且去掉链接事件，并且attach ConnectionHandler
-                    key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
-                    connection.connectionOpened();
-                    data.future.set(data.address);
-                } else {
-                    //链接仍然没有建立
-                    System.out.println("Failed to connect to {}" + sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
-                    data.future.setException(new ConnectException("Unknown reason"));
-                    data.future = null;
+        /**
+         * Fails every connect whose deadline has passed without the connection being established. Returns how long
+         * select() may block before the next deadline, or 0 if there is none.
+         */
+        private long expireConnects() {
+            PendingConnect conn;
+            while ((conn = connectDeadlines.peek()) != null) {
+                // Still attached to the key means handleKey() hasn't dealt with it yet
+                if (!conn.key.isValid() || conn.key.attachment() != conn) {
+                    connectDeadlines.poll();
+                    continue;
                 }
-            } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
-                Throwable cause = Throwables.getRootCause(e);
-                System.out.println("Failed to connect with exception: {}: {}" + cause.getClass().getName()+ cause.getMessage()+ e);
-                handler.closeConnection();
-                data.future.setException(cause);
-                data.future = null;
+                long remaining = conn.deadline - Utils.currentTimeMillis();
+                if (remaining > 0)
+                    return remaining;
+                connectDeadlines.poll();
+                conn.key.cancel();
+                try {
+                    conn.sc.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing channel" + e);
+                }
+                pendingConnects.decrementAndGet();
+                System.out.println("Connect to " + conn.address + " timed out");
+                conn.future.setException(new SocketTimeoutException("Connect to " + conn.address + " timed out"));
+                conn.connection.connectionClosed();
             }
-        } else // Process bytes read
-            ConnectionHandler.handleKey(key);
+            return 0;
+        }
+
+        // Handle a SelectionKey which was selected
+        //在Java NIO中，Channel的就绪状态表示该通道已经准备好进行某种I/O操作。就绪状态取决于通道的类型和具体的操作。
+        //以下是一些常见的Channel就绪状态及其对应的情况：
+        //OP_READ（可读就绪）：当通道中有数据可供读取时，通道会被标记为可读就绪状态。例如，在SocketChannel中，当远程主机发送数据到通道时，该通道就会变为可读就绪状态。
+        //OP_WRITE（可写就绪）：当可以向通道写入数据时，通道会被标记为可写就绪状态。例如，在SocketChannel中，当缓冲区有足够的空间可以写入数据时，该通道就会变为可写就绪状态。
+        //OP_CONNECT（连接就绪）：当SocketChannel正在进行非阻塞连接时，通道会被标记为连接就绪状态。当连接已经建立或正在建立中时，通道就会变为连接就绪状态。
+        //OP_ACCEPT（接收就绪）：在ServerSocketChannel上调用accept()方法时，如果有客户端连接请求到达，该通道会被标记为接收就绪状态。
+        //可以使用SelectionKey对象的isReadable()、isWritable()、isConnectable()和isAcceptable()方法来检查通道的就绪状态。
+        //请注意，就绪状态是针对非阻塞I/O操作的，它允许您在没有阻塞的情况下选择处理已经准备好的操作。
+        private void handleKey(SelectionKey key) throws IOException {
+            // We could have a !isValid() key here if the connection is already closed at this point
+
+            // 在Java NIO中，当SocketChannel正在进行非阻塞连接时，通道会被标记为连接就绪状态是因为非阻塞连接的过程是异步的。
+            // 当我们调用SocketChannel的connect()方法进行连接时，它会立即返回，而不会等待连接完成。在后台，操作系统会继续尝试建立连接，
+            // 同时SocketChannel会返回一个SelectionKey，标记为"连接就绪"，以便我们可以通过选择器（Selector）来检查连接是否已经建立成功。
+            //
+            // 在选择器的select()方法中，我们可以使用SelectionKey的isConnectable()方法来检查连接是否已经建立成功。
+            // 如果返回true，表示连接已经就绪，我们可以调用finishConnect()方法来完成连接过程。
+            // 这种方式允许我们在连接过程中执行其他操作，而不会阻塞线程，提高了程序的并发性能。
+
+            if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
+                // Create a ConnectionHandler and hook everything together
+                PendingConnect data = (PendingConnect) key.attachment();
+                StreamConnection connection = data.connection;
+                SocketChannel sc = (SocketChannel) key.channel();
+                // From here on the connection is either counted in connectedHandlers or gone.
+                pendingConnects.decrementAndGet();
+                ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+                handler.setWriteBufferWaterMarks(lowWaterMark, highWaterMark, pauseReadsWhenUnwritable);
+                handler.setSelectorWakeupPending(wakeupPending);
+                try {
+                    //链接确实建立
+                    if (sc.finishConnect()) {
+                        //从SocketChannel中获取远程socket地址
+                        System.out.println("Connected to {}" + sc.socket().getRemoteSocketAddress());
+                        //感兴趣的事件中，再加上读时间，并且去掉链接事件，并且attach ConnectionHandler
+                        key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
+                        connection.connectionOpened();
+                        data.future.set(data.address);
+                    } else {
+                        //链接仍然没有建立
+                        System.out.println("Failed to connect to {}" + sc.socket().getRemoteSocketAddress());
+                        handler.closeConnection(); // Failed to connect for some reason
+                        data.future.setException(new ConnectException("Unknown reason"));
+                        data.future = null;
+                    }
+                } catch (Exception e) {
+                    // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
+                    // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+                    // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
+                    Throwable cause = Throwables.getRootCause(e);
+                    System.out.println("Failed to connect with exception: {}: {}" + cause.getClass().getName()+ cause.getMessage()+ e);
+                    handler.closeConnection();
+                    data.future.setException(cause);
+                    data.future = null;
+                }
+            } else // Process bytes read
+                ConnectionHandler.handleKey(key);
+        }
     }
 
     class PendingConnect {
@@ -154,12 +322,44 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         StreamConnection connection;
         SocketAddress address;
         SettableFuture<SocketAddress> future = SettableFuture.create();
+        // Time at which the connect is abandoned, or 0 for never
+        long deadline;
+        // Set once registered with the loop's selector
+        SelectionKey key;
 
-        PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
+        PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address, long deadline) { this.sc = sc; this.connection = connection; this.address = address; this.deadline = deadline; }
+    }
+
+    // Picks the loop with the fewest connections. Ties go to the lowest index, so a lightly used manager keeps its
+    // connections on the service thread.
+    private SelectorLoop leastLoadedLoop() {
+        SelectorLoop best = loops[0];
+        int bestLoad = best.load();
+        for (int i = 1; i < loops.length && bestLoad > 0; i++) {
+            int load = loops[i].load();
+            if (load < bestLoad) {
+                best = loops[i];
+                bestLoad = load;
+            }
+        }
+        return best;
     }
 
     public ListenableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection) {
-        if (!isRunning())
+        return openConnection(serverAddress, connection, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The timeout is enforced by the selector loop the connection is assigned to, so any number of pending
+     * connects costs no extra threads or timers.</p>
+     */
+    @Override
+    public ListenableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection,
+                                                          int connectTimeoutMillis) {
+        checkArgument(connectTimeoutMillis >= 0, "connectTimeoutMillis must not be negative: %s", connectTimeoutMillis);
+        if (!isRunning() || loopExited)
             //没有在运行，直接异常
             throw new IllegalStateException();
         // Create a new connection, give it a connection as an attachment
@@ -180,11 +380,18 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             //连接
             sc.connect(serverAddress);
             //处理连接
-            PendingConnect data = new PendingConnect(sc, connection, serverAddress);
+            long deadline = connectTimeoutMillis == 0 ? 0 : Utils.currentTimeMillis() + connectTimeoutMillis;
+            PendingConnect data = new PendingConnect(sc, connection, serverAddress, deadline);
+            // The connection is pinned to this loop for the rest of its life
+            SelectorLoop loop = leastLoadedLoop();
+            loop.pendingConnects.incrementAndGet();
             //加入到队列中
-            newConnectionChannels.offer(data);
+            loop.newConnectionChannels.offer(data);
             //唤起selector
-            selector.wakeup();
+            loop.wakeup();
+            // The loop may have exited since the check above, after which nothing else fails what it left queued
+            if (loop.exited)
+                loop.failNewConnects();
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
@@ -193,21 +400,48 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : loops)
+            loop.selector.wakeup();
+    }
+
+    /**
+     * Sets the outbound water marks of connections opened from now on, see
+     * {@link ConnectionHandler#setWriteBufferWaterMarks(long, long, boolean)}.
+     */
+    public void setWriteBufferWaterMarks(long lowWaterMark, long highWaterMark, boolean pauseReadsWhenUnwritable) {
+        checkArgument(0 <= lowWaterMark && lowWaterMark <= highWaterMark,
+                "Need 0 <= lowWaterMark <= highWaterMark: %s, %s", lowWaterMark, highWaterMark);
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.pauseReadsWhenUnwritable = pauseReadsWhenUnwritable;
+    }
+
+    /** Returns the number of selector loops (and therefore threads) this manager runs. */
+    public int getSelectorCount() {
+        return loops.length;
     }
 
     @Override
     public int getConnectedClientCount() {
-        return connectedHandlers.size();
+        int count = 0;
+        for (SelectorLoop loop : loops)
+            count += loop.connectedHandlers.size();
+        return count;
     }
 
     @Override
     public void closeConnections(int n) {
         while (n-- > 0) {
-            ConnectionHandler handler;
-            //为什么这里需要同步
-            synchronized (connectedHandlers) {
-                handler = connectedHandlers.iterator().next();
+            ConnectionHandler handler = null;
+            for (SelectorLoop loop : loops) {
+                //为什么这里需要同步
+                synchronized (loop.connectedHandlers) {
+                    Iterator<ConnectionHandler> iterator = loop.connectedHandlers.iterator();
+                    if (iterator.hasNext())
+                        handler = iterator.next();
+                }
+                if (handler != null)
+                    break;
             }
             if (handler != null)
                 //关闭连接
@@ -21,17 +21,70 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A server which accepts inbound connections and hands each of them to a {@link ConnectionHandler}.</p>
+ *
+ * <p>By default everything (accepting, reading and writing) happens on the single server thread. In boss/worker
+ * mode the server thread only accepts, and every accepted channel is registered round-robin with one of a pool of
+ * worker selector loops, each running on its own thread. A storm of reconnecting peers then no longer stalls reads
+ * and writes on established connections. Should a worker loop fail, the whole server shuts down rather than handing
+ * it connections it would never serve. The accept rate can additionally be capped with
+ * {@link #setMaxAcceptsPerSecond(int)}, leaving the excess in the kernel's accept backlog.</p>
+ */
 public class NioServer extends AbstractExecutionThreadService {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    // Upper bound on connections accepted per select round, so a deep backlog doesn't monopolize the loop
+    private static final int MAX_ACCEPTS_PER_ROUND = 64;
+
     private final ServerSocketChannel sc;
     final Selector selector;
+    private final SelectionKey acceptKey;
     private final StreamConnectionFactory connectionFactory;
 
+    private volatile long lowWaterMark = ConnectionHandler.DEFAULT_LOW_WATER_MARK;
+    private volatile long highWaterMark = ConnectionHandler.DEFAULT_HIGH_WATER_MARK;
+    private volatile boolean pauseReadsWhenUnwritable = false;
+    // Shared with every accepted connection so concurrent writers coalesce their selector wakeups
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    // Boss/worker mode: empty if connections are served on the server thread itself
+    private final WorkerLoop[] workers;
+    private int nextWorker = 0;
+    // Set when the acceptor or any worker loop exits, so the other loops shut down with it rather than accepting
+    // connections nobody would serve
+    private volatile boolean loopExited = false;
+
+    // Accept rate limiting, only touched on the server thread apart from the limit itself
+    private volatile int maxAcceptsPerSecond = 0;
+    private long acceptWindowStart = 0;
+    private int acceptedInWindow = 0;
+    private boolean acceptPaused = false;
+
     public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+        this(connectionFactory, bindAddress, 0, 0);
+    }
+
+    /**
+     * Creates a server, optionally in boss/worker mode.
+     *
+     * @param workerCount the number of worker selector loops. If 0, connections are served on the accepting thread.
+     * @param backlog the maximum number of pending connections the kernel queues for us, or 0 for the default
+     */
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress, int workerCount,
+                     int backlog) throws IOException {
+        checkArgument(workerCount >= 0, "workerCount must not be negative: %s", workerCount);
+        checkArgument(backlog >= 0, "backlog must not be negative: %s", backlog);
         //链接工厂
         this.connectionFactory = connectionFactory;
 
@@ -42,7 +95,7 @@ public class NioServer extends AbstractExecutionThreadService {
         sc.configureBlocking(false);
 
         //绑定地址和端口，一般是127.0.0.1 8379
-        sc.socket().bind(bindAddress);
+        sc.socket().bind(bindAddress, backlog);
 
         // Selector.open() 方法来创建 Selector 对象，这是因为 Selector 类提供了一个静态工厂方法 open() 来创建 Selector 实例。
         // 这个方法会根据操作系统的不同，使用适当的 SelectorProvider 来创建 Selector。
@@ -51,17 +104,51 @@ public class NioServer extends AbstractExecutionThreadService {
         selector = SelectorProvider.provider().openSelector();
 
         //也就是说，ServerSocketChannel对accept感兴趣，而socketChannel对read和write感兴趣
-        sc.register(selector, SelectionKey.OP_ACCEPT);
-    }
+        acceptKey = sc.register(selector, SelectionKey.OP_ACCEPT);
 
+        workers = new WorkerLoop[workerCount];
+        for (int i = 0; i < workerCount; i++)
+            workers[i] = new WorkerLoop();
+    }
 
+    /**
+     * Sets the outbound water marks of connections accepted from now on, see
+     * {@link ConnectionHandler#setWriteBufferWaterMarks(long, long, boolean)}.
+     */
+    public void setWriteBufferWaterMarks(long lowWaterMark, long highWaterMark, boolean pauseReadsWhenUnwritable) {
+        checkArgument(0 <= lowWaterMark && lowWaterMark <= highWaterMark,
+                "Need 0 <= lowWaterMark <= highWaterMark: %s, %s", lowWaterMark, highWaterMark);
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.pauseReadsWhenUnwritable = pauseReadsWhenUnwritable;
+    }
 
+    /**
+     * Caps how many connections the accepting loop takes per second. Once the cap is reached the server stops
+     * accepting until the current one second window ends, and further peers wait in the kernel's backlog (or are
+     * refused by it once that is full). 0, the default, means no limit.
+     */
+    public void setMaxAcceptsPerSecond(int maxAcceptsPerSecond) {
+        checkArgument(maxAcceptsPerSecond >= 0, "maxAcceptsPerSecond must not be negative: %s", maxAcceptsPerSecond);
+        this.maxAcceptsPerSecond = maxAcceptsPerSecond;
+    }
 
     protected void run() throws Exception {
+        List<Thread> workerThreads = new ArrayList<>(workers.length);
+        for (int i = 0; i < workers.length; i++) {
+            Thread thread = new Thread(workers[i], serviceName() + " worker " + i);
+            thread.setDaemon(true);
+            thread.start();
+            workerThreads.add(thread);
+        }
         try {
-            while (isRunning()) {
-
-                selector.select();
+            while (isRunning() && !loopExited) {
+                long pauseMillis = maybeResumeAccepting();
+                if (pauseMillis > 0)
+                    selector.select(pauseMillis);
+                else
+                    selector.select();
+                wakeupPending.set(false);
 
                 Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
                 while (keyIterator.hasNext()) {
@@ -75,56 +162,72 @@ public class NioServer extends AbstractExecutionThreadService {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            loopExited = true;
+            for (WorkerLoop worker : workers)
+                worker.selector.wakeup();
             // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    //close所有的channel
-                    key.channel().close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                try {
-                    //当我们关闭一个 Channel 时，Selector 会在下一次的选择操作中注意到该 Channel 已经关闭，
-                    // 并将其对应的 SelectionKey 标记为无效。
-                    // 但是，如果我们不手动调用 key.cancel() 取消该 SelectionKey，
-                    // 它仍然会留在 Selector 的键集合中，可能会导致不必要的迭代和处理。
-                    key.cancel();
-                    this.handleKey(selector, key);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            closeAll(selector);
             try {
-                selector.close(); // 关闭 Selector
+                sc.close();// 关闭 ServerSocketChannel
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            for (Thread thread : workerThreads)
+                thread.join();
+        }
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        selector.wakeup();
+        for (WorkerLoop worker : workers)
+            worker.selector.wakeup();
+    }
+
+    private void closeAll(Selector selector) {
+        for (SelectionKey key : selector.keys()) {
             try {
-                sc.close();// 关闭 ServerSocketChannel
+                //close所有的channel
+                key.channel().close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            //当我们关闭一个 Channel 时，Selector 会在下一次的选择操作中注意到该 Channel 已经关闭，
+            // 并将其对应的 SelectionKey 标记为无效。
+            // 但是，如果我们不手动调用 key.cancel() 取消该 SelectionKey，
+            // 它仍然会留在 Selector 的键集合中，可能会导致不必要的迭代和处理。
+            key.cancel();
+            ConnectionHandler.handleKey(key); // Close connection if relevant
+        }
+        try {
+            selector.close(); // 关闭 Selector
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-
     // Handle a SelectionKey which was selected
     private void handleKey(Selector selector, SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a stream connection as an attachment
-            SocketChannel newChannel = sc.accept();
-            newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            try {
-                //每建立一个链接，链接处理就通过工厂创建
-                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
-                newKey.attach(handler);
-                //回调连接建立
-                handler.connection.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                e.printStackTrace();
-                newKey.channel().close();
+            // Accept new connections, each gets a stream connection as an attachment
+            for (int i = 0; i < MAX_ACCEPTS_PER_ROUND; i++) {
+                if (!acceptPermitted()) {
+                    // Leave the rest in the backlog until the rate limit window is over
+                    acceptKey.interestOps(0);
+                    acceptPaused = true;
+                    break;
+                }
+                SocketChannel newChannel = sc.accept();
+                if (newChannel == null)
+                    break;
+                acceptedInWindow++;
+                newChannel.configureBlocking(false);
+                if (workers.length == 0) {
+                    registerConnection(selector, newChannel, wakeupPending);
+                } else {
+                    workers[nextWorker].register(newChannel);
+                    nextWorker = (nextWorker + 1) % workers.length;
+                }
             }
         } else { // Got a closing channel or a channel to a client connection
             //System.out.println("server handle key else called ");
@@ -132,6 +235,123 @@ public class NioServer extends AbstractExecutionThreadService {
         }
     }
 
-}
+    // Whether the rate limit allows one more accept in the current one second window
+    private boolean acceptPermitted() {
+        int limit = maxAcceptsPerSecond;
+        if (limit == 0)
+            return true;
+        long now = Utils.currentTimeMillis();
+        if (now - acceptWindowStart >= 1000) {
+            acceptWindowStart = now;
+            acceptedInWindow = 0;
+        }
+        return acceptedInWindow < limit;
+    }
+
+    // Re-enables accepting once the rate limit window is over. Returns how long to wait for that otherwise, or 0 if
+    // accepting isn't paused.
+    private long maybeResumeAccepting() {
+        if (!acceptPaused)
+            return 0;
+        long remaining = acceptWindowStart + 1000 - Utils.currentTimeMillis();
+        if (remaining > 0 && maxAcceptsPerSecond != 0)
+            return remaining;
+        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        acceptPaused = false;
+        return 0;
+    }
 
+    // Registers an accepted channel with the given selector and hooks a new connection up to it. Runs on the thread
+    // owning that selector.
+    private void registerConnection(Selector selector, SocketChannel newChannel, AtomicBoolean wakeupPending) throws IOException {
+        SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
+        try {
+            //每建立一个链接，链接处理就通过工厂创建
+            ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
+            handler.setWriteBufferWaterMarks(lowWaterMark, highWaterMark, pauseReadsWhenUnwritable);
+            handler.setSelectorWakeupPending(wakeupPending);
+            newKey.attach(handler);
+            //回调连接建立
+            handler.connection.connectionOpened();
+        } catch (IOException e) {
+            // This can happen if ConnectionHandler's call to get a new handler returned null
+            e.printStackTrace();
+            newKey.channel().close();
+        }
+    }
+
+    /**
+     * A selector loop serving the connections the acceptor hands to it. Runs on its own thread and only ever touches
+     * its own selector.
+     */
+    private class WorkerLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new LinkedBlockingQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private volatile boolean exited = false;
+
+        WorkerLoop() throws IOException {
+            selector = SelectorProvider.provider().openSelector();
+        }
+
+        // Called on the acceptor thread
+        void register(SocketChannel channel) {
+            newChannels.offer(channel);
+            // If the loop has already exited it may have drained the queue before the offer, so nobody else will
+            // close the channel
+            if (exited)
+                closeNewChannels();
+            else if (wakeupPending.compareAndSet(false, true))
+                selector.wakeup();
+        }
 
+        @Override
+        public void run() {
+            try {
+                while (isRunning() && !loopExited) {
+                    SocketChannel newChannel;
+                    while ((newChannel = newChannels.poll()) != null) {
+                        try {
+                            registerConnection(selector, newChannel, wakeupPending);
+                        } catch (IOException e) {
+                            // The peer went away before we got to it
+                            e.printStackTrace();
+                            newChannel.close();
+                        }
+                    }
+
+                    selector.select();
+                    wakeupPending.set(false);
+
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        ConnectionHandler.handleKey(key);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                exited = true;
+                loopExited = true;
+                NioServer.this.selector.wakeup();
+                closeNewChannels();
+                closeAll(selector);
+            }
+        }
+
+        // Closes the channels handed over but not yet registered
+        private void closeNewChannels() {
+            SocketChannel newChannel;
+            while ((newChannel = newChannels.poll()) != null) {
+                try {
+                    newChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package org.bitcoin.core;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A read cursor over a message payload held in one or more {@link ByteBuffer}s, heap or direct, for example a
+ * socket read buffer or the chunks of a {@link SegmentedBuffer}. It offers the same reads as the helpers in
+ * {@link Message}, so a message can be parsed straight from where its bytes arrived rather than from a copy of them.</p>
+ *
+ * <p>Reads use the bytes between each buffer's position and limit at construction time, in order, and never change the
+ * buffers themselves. Running out of bytes raises a {@link ProtocolException}, like a truncated byte array payload.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class PayloadReader {
+    // Little endian views of the segments, each consumed from its position to its limit
+    private final ByteBuffer[] segments;
+    private int segment = 0;
+    private int position = 0;
+    private int remaining = 0;
+
+    public PayloadReader(ByteBuffer... buffers) {
+        segments = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            segments[i] = checkNotNull(buffers[i]).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            remaining += segments[i].remaining();
+        }
+    }
+
+    /** The number of bytes read so far. */
+    public int position() {
+        return position;
+    }
+
+    /** The number of bytes left to read. */
+    public int remaining() {
+        return remaining;
+    }
+
+    public boolean hasRemaining() {
+        return remaining > 0;
+    }
+
+    public byte readByte() throws ProtocolException {
+        ByteBuffer buffer = segmentFor(1);
+        consumed(1);
+        return buffer.get();
+    }
+
+    /** Reads an unsigned 16 bit integer in big endian format, as used for ports. */
+    public int readUint16BE() throws ProtocolException {
+        ByteBuffer buffer = segmentFor(2);
+        if (buffer != null) {
+            consumed(2);
+            return Short.reverseBytes(buffer.getShort()) & 0xFFFF;
+        }
+        return ((readByte() & 0xFF) << 8) | (readByte() & 0xFF);
+    }
+
+    public long readUint32() throws ProtocolException {
+        ByteBuffer buffer = segmentFor(4);
+        if (buffer != null) {
+            consumed(4);
+            return buffer.getInt() & 0xFFFFFFFFL;
+        }
+        return readLittleEndian(4);
+    }
+
+    public long readInt64() throws ProtocolException {
+        ByteBuffer buffer = segmentFor(8);
+        if (buffer != null) {
+            consumed(8);
+            return buffer.getLong();
+        }
+        return readLittleEndian(8);
+    }
+
+    public VarInt readVarInt() throws ProtocolException {
+        int first = readByte() & 0xFF;
+        if (first < 253)
+            return new VarInt(first, 1);
+        if (first == 253)
+            return new VarInt(readLittleEndian(2), 3);
+        if (first == 254)
+            return new VarInt(readUint32(), 5);
+        return new VarInt(readInt64(), 9);
+    }
+
+    public byte[] readBytes(int length) throws ProtocolException {
+        if (length < 0 || length > remaining)
+            throw new ProtocolException("Claimed value length too large: " + length);
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            ByteBuffer buffer = segmentFor(1);
+            int n = Math.min(length - copied, buffer.remaining());
+            buffer.get(bytes, copied, n);
+            consumed(n);
+            copied += n;
+        }
+        return bytes;
+    }
+
+    public void skip(int length) throws ProtocolException {
+        if (length < 0 || length > remaining)
+            throw new ProtocolException("Claimed value length too large: " + length);
+        int left = length;
+        while (left > 0) {
+            ByteBuffer buffer = segmentFor(1);
+            int n = Math.min(left, buffer.remaining());
+            ((Buffer) buffer).position(buffer.position() + n);
+            consumed(n);
+            left -= n;
+        }
+    }
+
+    // Returns the segment to read the next n bytes from, or null if they straddle two segments so the caller has to
+    // assemble them a byte at a time. The caller accounts for what it reads.
+    private ByteBuffer segmentFor(int n) throws ProtocolException {
+        if (n > remaining)
+            throw new ProtocolException("Payload ends " + (n - remaining) + " bytes short of the next field");
+        while (!segments[segment].hasRemaining())
+            segment++;
+        ByteBuffer buffer = segments[segment];
+        return buffer.remaining() >= n ? buffer : null;
+    }
+
+    private void consumed(int n) {
+        position += n;
+        remaining -= n;
+    }
+
+    private long readLittleEndian(int n) throws ProtocolException {
+        long value = 0;
+        for (int i = 0; i < n; i++)
+            value |= (readByte() & 0xFFL) << (8 * i);
+        return value;
+    }
+}
@@ -0,0 +1,159 @@
+package org.bitcoin.core;
+
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>A write cursor for message payloads, the counterpart of {@link PayloadReader}. Fields go straight into a
+ * {@link ByteBuffer} with bulk little endian puts, and var ints are encoded in place, so serializing a message
+ * allocates nothing beyond the buffer itself.</p>
+ *
+ * <p>When the buffer runs out of space its contents are moved to a larger heap buffer, so callers must fetch the
+ * current buffer with {@link #buffer()} once they are done writing rather than holding on to the one they passed in.
+ * Code which still writes to an {@link OutputStream} can do so through {@link #asOutputStream()}.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class PayloadWriter {
+    private ByteBuffer buffer;
+
+    /**
+     * Writes into a new heap buffer of the given initial capacity.
+     */
+    public PayloadWriter(int initialCapacity) {
+        this(ByteBuffer.allocate(initialCapacity));
+    }
+
+    /**
+     * @param buffer the buffer to write into, starting at its current position. Its byte order is not used.
+     */
+    public PayloadWriter(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public PayloadWriter writeByte(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+        return this;
+    }
+
+    public PayloadWriter writeBytes(byte[] bytes) {
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    public PayloadWriter writeBytes(byte[] bytes, int offset, int length) {
+        ensureRemaining(length);
+        buffer.put(bytes, offset, length);
+        return this;
+    }
+
+    /** Writes an unsigned 16 bit integer in big endian format, as used for ports. */
+    public PayloadWriter writeUint16BE(int value) {
+        ensureRemaining(2);
+        buffer.put((byte) (value >>> 8));
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public PayloadWriter writeUint32(long value) {
+        ensureRemaining(4);
+        putIntLE((int) value);
+        return this;
+    }
+
+    public PayloadWriter writeInt64(long value) {
+        ensureRemaining(8);
+        putLongLE(value);
+        return this;
+    }
+
+    /** Writes an unsigned value in the var int format, using as few bytes as possible. */
+    public PayloadWriter writeVarInt(long value) {
+        int size = VarInt.sizeOf(value);
+        ensureRemaining(size);
+        switch (size) {
+            case 1:
+                buffer.put((byte) value);
+                break;
+            case 3:
+                buffer.put((byte) 253);
+                buffer.put((byte) value);
+                buffer.put((byte) (value >>> 8));
+                break;
+            case 5:
+                buffer.put((byte) 254);
+                putIntLE((int) value);
+                break;
+            default:
+                buffer.put((byte) 255);
+                putLongLE(value);
+        }
+        return this;
+    }
+
+    /** Writes a byte array prefixed by its length as a var int. */
+    public PayloadWriter writeVarBytes(byte[] bytes) {
+        writeVarInt(bytes.length);
+        return writeBytes(bytes);
+    }
+
+    /** The number of bytes in the buffer, which is where the next one is written. */
+    public int position() {
+        return buffer.position();
+    }
+
+    /**
+     * Returns the buffer holding everything written so far, positioned after the last written byte. This is not
+     * necessarily the buffer this writer was created with.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** Copies everything written so far into a new array. */
+    public byte[] toByteArray() {
+        ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).flip();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a stream writing through to this writer, for serialization code which hasn't been ported to it.
+     */
+    public OutputStream asOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                writeByte(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writeBytes(b, off, len);
+            }
+        };
+    }
+
+    // The buffer may well be big endian, swapping the bytes is cheaper than switching its order back and forth
+    private void putIntLE(int value) {
+        buffer.putInt(buffer.order() == ByteOrder.LITTLE_ENDIAN ? value : Integer.reverseBytes(value));
+    }
+
+    private void putLongLE(long value) {
+        buffer.putLong(buffer.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value));
+    }
+
+    private void ensureRemaining(int needed) {
+        if (buffer.remaining() >= needed)
+            return;
+        int newCapacity = Math.max(buffer.capacity() << 1, buffer.position() + needed);
+        ByteBuffer grown = ByteBuffer.allocate(newCapacity).order(buffer.order());
+        ((Buffer) buffer).flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
@@ -4,11 +4,14 @@ import com.google.common.io.BaseEncoding;
 import org.bouncycastle.jcajce.provider.digest.SHA3;
 
 import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Locale;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -38,6 +41,7 @@ public class PeerAddress extends ChildMessage{
 
     private static final BaseEncoding BASE32 = BaseEncoding.base32().lowerCase();
     private static final byte[] ONIONCAT_PREFIX = Utils.HEX.decode("fd87d87eeb43");
+    private static final byte[] IPV4_MAPPED_PREFIX = Utils.HEX.decode("00000000000000000000ffff");
 
     /**
      * Construct a peer address from a serialized payload.
@@ -51,6 +55,13 @@ public class PeerAddress extends ChildMessage{
         super(params, payload, offset, parent, serializer, UNKNOWN_LENGTH);
     }
 
+    /**
+     * Construct a peer address from the payload under a reader, advancing it past the address.
+     */
+    public PeerAddress(NetworkParameters params, PayloadReader reader, Message parent, MessageSerializer serializer) throws ProtocolException {
+        super(params, reader, parent, serializer, UNKNOWN_LENGTH);
+    }
+
     /**
      * Construct a peer address from a memorized or hardcoded address.
      */
@@ -98,6 +109,7 @@ public class PeerAddress extends ChildMessage{
      */
     public PeerAddress(NetworkParameters params, String hostname, int port) {
         super(params);
+        setSerializer(params.getDefaultSerializer().withProtocolVersion(0));
         this.hostname = hostname;
         this.port = port;
         this.services = BigInteger.ZERO;
@@ -131,13 +143,14 @@ public class PeerAddress extends ChildMessage{
         }
         if (protocolVersion == 2) {
             VarInt servicesVarInt = readVarInt();
-            length += servicesVarInt.getSizeInBytes();
+            length += servicesVarInt.getOriginalSizeInBytes();
             services = BigInteger.valueOf(servicesVarInt.longValue());
             int networkId = readByte();
             length += 1;
-            byte[] addrBytes = readByteArray();
+            VarInt addrLenVarInt = readVarInt();
+            byte[] addrBytes = readBytes(addrLenVarInt.intValue());
             int addrLen = addrBytes.length;
-            length += VarInt.sizeOf(addrLen) + addrLen;
+            length += addrLenVarInt.getOriginalSizeInBytes() + addrLen;
             if (networkId == 0x01) {
                 // IPv4
                 if (addrLen != 4)
@@ -154,18 +167,13 @@ public class PeerAddress extends ChildMessage{
                 // TORv2
                 if (addrLen != 10)
                     throw new ProtocolException("invalid length of TORv2 address: " + addrLen);
-                hostname = BASE32.encode(addrBytes) + ".onion";
+                hostname = onionHostname(addrBytes);
                 addr = null;
             } else if (networkId == 0x04) {
                 // TORv3
                 if (addrLen != 32)
                     throw new ProtocolException("invalid length of TORv3 address: " + addrLen);
-                byte torVersion = 0x03;
-                byte[] onionAddress = new byte[35];
-                System.arraycopy(addrBytes, 0, onionAddress, 0, 32);
-                System.arraycopy(onionChecksum(addrBytes, torVersion), 0, onionAddress, 32, 2);
-                onionAddress[34] = torVersion;
-                hostname = BASE32.encode(onionAddress) + ".onion";
+                hostname = onionHostname(addrBytes);
                 addr = null;
             } else {
                 // ignore unknown network IDs
@@ -185,11 +193,137 @@ public class PeerAddress extends ChildMessage{
                 hostname = null;
             }
         }
-        port = Utils.readUint16BE(payload, cursor);
-        cursor += 2;
+        port = readUint16BE();
         length += 2;
     }
-    private static InetAddress getByAddress(byte[] addrBytes) {
+    @Override
+    protected int computeSerializedSize() {
+        int protocolVersion = serializer.getProtocolVersion();
+        if (protocolVersion < 0 || protocolVersion > 2)
+            throw new IllegalStateException("invalid protocolVersion: " + protocolVersion);
+        if (protocolVersion < 2)
+            return (protocolVersion == 1 ? 4 : 0) + 8 + 16 + 2;
+        int addrLen;
+        if (addr != null)
+            addrLen = addr instanceof Inet4Address ? 4 : 16;
+        else if (hostname != null)
+            addrLen = hostname.length() == 16 + 6 ? 10 : 32; // base32 of 10 byte TORv2 or 35 byte TORv3 + ".onion"
+        else
+            throw new IllegalStateException();
+        // time, services, network id, address with its length prefix, port
+        return 4 + VarInt.sizeOf(services.longValue()) + 1 + VarInt.sizeOf(addrLen) + addrLen + 2;
+    }
+
+    @Override
+    protected void bitcoinSerializeToWriter(PayloadWriter writer) {
+        int protocolVersion = serializer.getProtocolVersion();
+        if (protocolVersion < 0 || protocolVersion > 2)
+            throw new IllegalStateException("invalid protocolVersion: " + protocolVersion);
+
+        if (protocolVersion >= 1)
+            writer.writeUint32(time);
+        if (protocolVersion == 2) {
+            writer.writeVarInt(services.longValue());
+            if (addr != null) {
+                if (addr instanceof Inet4Address)
+                    writer.writeByte(0x01);
+                else if (addr instanceof Inet6Address)
+                    writer.writeByte(0x02);
+                else
+                    throw new IllegalStateException();
+                writer.writeVarBytes(addr.getAddress());
+            } else if (hostname != null && hostname.toLowerCase(Locale.ROOT).endsWith(".onion")) {
+                byte[] onionAddress = BASE32.decode(hostname.substring(0, hostname.length() - 6));
+                if (onionAddress.length == 10) {
+                    // TORv2
+                    writer.writeByte(0x03);
+                    writer.writeVarBytes(onionAddress);
+                } else if (onionAddress.length == 32 + 2 + 1) {
+                    // TORv3
+                    byte[] pubkey = Arrays.copyOfRange(onionAddress, 0, 32);
+                    byte[] checksum = Arrays.copyOfRange(onionAddress, 32, 34);
+                    byte torVersion = onionAddress[34];
+                    if (torVersion != 0x03)
+                        throw new IllegalStateException("version");
+                    if (!Arrays.equals(checksum, onionChecksum(pubkey, torVersion)))
+                        throw new IllegalStateException("checksum");
+                    writer.writeByte(0x04);
+                    writer.writeVarBytes(pubkey);
+                } else {
+                    throw new IllegalStateException();
+                }
+            } else {
+                throw new IllegalStateException();
+            }
+        } else {
+            writer.writeInt64(services.longValue());
+            if (addr != null) {
+                // Java does not provide any utility to map an IPv4 address into IPv6 space, so we have to do it by
+                // hand.
+                byte[] ipBytes = addr.getAddress();
+                if (ipBytes.length == 4) {
+                    writer.writeBytes(IPV4_MAPPED_PREFIX);
+                }
+                writer.writeBytes(ipBytes);
+            } else if (hostname != null && hostname.toLowerCase(Locale.ROOT).endsWith(".onion")) {
+                byte[] onionAddress = BASE32.decode(hostname.substring(0, hostname.length() - 6));
+                if (onionAddress.length != 10)
+                    throw new IllegalStateException();
+                writer.writeBytes(ONIONCAT_PREFIX);
+                writer.writeBytes(onionAddress);
+            } else {
+                throw new IllegalStateException();
+            }
+        }
+        // And write out the port. Unlike the rest of the protocol, address and port is in big endian byte order.
+        writer.writeUint16BE(port);
+    }
+
+    /**
+     * Returns the length of the address encoded at the given offset in the wire format of the given protocol version,
+     * the same as {@link #getMessageSize()} after parsing it but without creating anything.
+     */
+    static int encodedLength(byte[] payload, int offset, int protocolVersion) throws ProtocolException {
+        if (protocolVersion < 0 || protocolVersion > 2)
+            throw new IllegalStateException("invalid protocolVersion: " + protocolVersion);
+        int length;
+        try {
+            if (protocolVersion == 2) {
+                // time, services varint, network id, address byte array, port
+                int cursor = offset + 4;
+                cursor += new VarInt(payload, cursor).getOriginalSizeInBytes();
+                cursor += 1;
+                VarInt addrLenVarInt = new VarInt(payload, cursor);
+                long addrLen = addrLenVarInt.longValue();
+                if (addrLen < 0 || addrLen > Message.MAX_SIZE)
+                    throw new ProtocolException("Claimed value length too large: " + addrLen);
+                cursor += addrLenVarInt.getOriginalSizeInBytes() + (int) addrLen;
+                length = cursor + 2 - offset;
+            } else {
+                // (time,) services, 16 byte address, port
+                length = (protocolVersion == 1 ? 4 : 0) + 8 + 16 + 2;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+        if (offset + length > payload.length)
+            throw new ProtocolException("Address runs past the end of the message");
+        return length;
+    }
+
+    // The .onion host name of a 10 byte TORv2 address or a 32 byte TORv3 public key
+    static String onionHostname(byte[] addrBytes) {
+        if (addrBytes.length == 10)
+            return BASE32.encode(addrBytes) + ".onion";
+        byte torVersion = 0x03;
+        byte[] onionAddress = new byte[35];
+        System.arraycopy(addrBytes, 0, onionAddress, 0, 32);
+        System.arraycopy(onionChecksum(addrBytes, torVersion), 0, onionAddress, 32, 2);
+        onionAddress[34] = torVersion;
+        return BASE32.encode(onionAddress) + ".onion";
+    }
+
+    static InetAddress getByAddress(byte[] addrBytes) {
         try {
             return InetAddress.getByAddress(addrBytes);
         } catch (UnknownHostException e) {
@@ -197,7 +331,7 @@ public class PeerAddress extends ChildMessage{
         }
     }
 
-    private byte[] onionChecksum(byte[] pubkey, byte version) {
+    private static byte[] onionChecksum(byte[] pubkey, byte version) {
         if (pubkey.length != 32)
             throw new IllegalArgumentException();
         SHA3.Digest256 digest256 = new SHA3.Digest256();
@@ -207,6 +341,34 @@ public class PeerAddress extends ChildMessage{
         return Arrays.copyOf(digest256.digest(), 2);
     }
 
+    // False for addrv2 entries of networks we don't know, which are parsed without an address or host name
+    boolean isKnownNetwork() {
+        return addr != null || hostname != null;
+    }
+
+    /**
+     * Packs this address into a {@link CompactPeerAddress}, for keeping it around cheaply.
+     *
+     * @throws IllegalStateException if this is an unresolved host name other than a .onion address
+     */
+    public CompactPeerAddress toCompact() {
+        long services = this.services.longValue();
+        long time = this.time < 0 ? 0 : this.time;
+        if (addr != null) {
+            int networkId = addr instanceof Inet4Address ? CompactPeerAddress.NETWORK_IPV4 : CompactPeerAddress.NETWORK_IPV6;
+            return new CompactPeerAddress(networkId, addr.getAddress(), port, services, time);
+        }
+        if (hostname != null && hostname.toLowerCase(Locale.ROOT).endsWith(".onion")) {
+            byte[] onionAddress = BASE32.decode(hostname.substring(0, hostname.length() - 6).toLowerCase(Locale.ROOT));
+            if (onionAddress.length == 10)
+                return new CompactPeerAddress(CompactPeerAddress.NETWORK_TORV2, onionAddress, port, services, time);
+            if (onionAddress.length == 32 + 2 + 1)
+                return new CompactPeerAddress(CompactPeerAddress.NETWORK_TORV3, Arrays.copyOf(onionAddress, 32), port,
+                        services, time);
+        }
+        throw new IllegalStateException("Not a network address: " + hostname);
+    }
+
     public InetSocketAddress toSocketAddress() {
         // Reconstruct the InetSocketAddress properly
         if (hostname != null) {
@@ -3,10 +3,10 @@ package org.bitcoin.core;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -15,6 +15,11 @@ import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.security.MessageDigest;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -27,21 +32,50 @@ import static com.google.common.base.Preconditions.checkArgument;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamConnection {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
+    // Outbound messages are serialized into buffers from this pool. Most messages (pings, invs, small addrs) fit
+    // into a single 4 KB buffer, bigger ones spill over into a one-off heap buffer.
+    private static final ByteBufferPool OUTBOUND_BUFFER_POOL = new ByteBufferPool(4096, 1024, false);
+    // Chunks for reassembling messages larger than the read buffer, shared by all connections
+    private static final ByteBufferPool REASSEMBLY_CHUNK_POOL = new ByteBufferPool(64 * 1024, 256, false);
+    // Payload bytes a connection may have waiting for its decode executor before it stops reading from the socket
+    public static final int DEFAULT_MAX_QUEUED_DECODE_BYTES = 4 * 1024 * 1024;
+
     private final Lock lock = Threading.lock(PeerSocketHandler.class);
     //BitcoinSerializer
     private final MessageSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
     private boolean closePending = false;
+    // False while the write target has more bytes queued for this peer than its high water mark
+    private volatile boolean writable = true;
     // writeTarget will be thread-safe, and may call into PeerGroup, which calls us, so we should call it unlocked
     protected MessageWriteTarget writeTarget = null;
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
     // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
-    private BitcoinSerializer.BitcoinPacketHeader header;
+    // Its bytes are kept in pooled chunks which are only taken as data actually arrives, so a peer announcing a huge
+    // message can't make us allocate for it up front.
+    private SegmentedBuffer largeReadBuffer;
+    // Decode pipeline, see setDecodeExecutor()
+    private volatile Executor decodeExecutor;
+    private final Queue<DecodeTask> decodeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean decodeFailed = false;
+    private volatile int maxQueuedDecodeBytes = DEFAULT_MAX_QUEUED_DECODE_BYTES;
+    // Payload bytes of the frames in decodeQueue, and whether reads are paused because of them. Changes are made and
+    // passed on to the write target under this monitor, so a pause and a resume can't overtake each other.
+    private final Object decodeBacklogLock = new Object();
+    private long queuedDecodeBytes = 0; // guarded by decodeBacklogLock
+    private boolean decodeReadsPaused = false; // guarded by decodeBacklogLock
+    // Hashes largeReadBuffer's payload as it arrives, reused for every large message on this connection
+    private final MessageDigest payloadDigest = Sha256Hash.newDigest();
+    // Reused for every message on this connection, only valid while largeReadBuffer != null
+    private final BitcoinSerializer.BitcoinPacketHeader header = new BitcoinSerializer.BitcoinPacketHeader();
+    // Commands we want to receive, as pairs of header words (see setCommandAllowlist()), or null for all of them
+    private volatile long[] allowedCommands;
+    // Payload bytes of a skipped message which haven't arrived yet
+    private int bytesToSkip = 0;
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         checkNotNull(params);
@@ -50,8 +84,15 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     }
 
     public PeerSocketHandler(NetworkParameters params, PeerAddress peerAddress) {
+        this(params, peerAddress, params.getDefaultSerializer());
+    }
+
+    /**
+     * Creates a handler which (de)serializes messages with the given serializer, for example a lazily parsing one.
+     */
+    public PeerSocketHandler(NetworkParameters params, PeerAddress peerAddress, MessageSerializer serializer) {
         checkNotNull(params);
-        serializer = params.getDefaultSerializer();
+        this.serializer = checkNotNull(serializer);
         this.peerAddress = checkNotNull(peerAddress);
     }
 
@@ -62,6 +103,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      *
      * Sends the given message to the peer. Due to the asynchronousness of network programming, there is no guarantee
      * the peer will have received it. Throws NotYetConnectedException if we are not yet connected to the remote peer.
+     * A message received from another peer can be relayed as is, see {@link Message#isRelayable()}.
      * TODO: Maybe use something other than the unchecked NotYetConnectedException here
      */
     public ListenableFuture sendMessage(Message message) throws NotYetConnectedException {
@@ -72,14 +114,28 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Serialize header and payload in a single pass into a pooled buffer and hand it to the write target, which
+        // owns it until the write completes. Then it goes back to the pool.
+        ByteBuffer buffer = null;
         try {
-            serializer.serialize(message, out);
-            return writeTarget.writeBytes(out.toByteArray());
+            buffer = serializer.serialize(message, OUTBOUND_BUFFER_POOL);
+            ListenableFuture future = writeTarget.writeBuffer(buffer);
+            final ByteBuffer written = buffer;
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    OUTBOUND_BUFFER_POOL.release(written);
+                }
+            }, MoreExecutors.directExecutor());
+            return future;
         } catch (IOException e) {
+            OUTBOUND_BUFFER_POOL.release(buffer);
             exceptionCaught(e);
             return Futures.immediateFailedFuture(e);
+        } catch (RuntimeException e) {
+            // A failed serialize has already given its buffer back, one the write target refused goes back here
+            OUTBOUND_BUFFER_POOL.release(buffer);
+            throw e;
         }
     }
 
@@ -106,10 +162,184 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     }
 
     /**
-     * Called every time a message is received from the network
+     * Called every time a message is received from the network. Messages are delivered one at a time and in the
+     * order they were received, on the network thread or, with a decode executor set, on one of its threads.
      */
     protected abstract void processMessage(Message m) throws Exception;
 
+    /**
+     * <p>Moves checksum verification and message parsing off the network thread. The network thread then only splits
+     * the incoming bytes into frames, which are decoded on the given executor, typically a pool shared by all
+     * connections. Decoded messages are still passed to {@link #processMessage(Message)} one at a time and in the
+     * order they arrived, on whichever executor thread completes the oldest outstanding frame.</p>
+     *
+     * <p>Reading from the socket is paused while more than {@link #DEFAULT_MAX_QUEUED_DECODE_BYTES} of payload wait to
+     * be decoded, and resumed once half of that is left, so a fast peer can't queue up memory faster than the executor
+     * decodes it.</p>
+     *
+     * <p>Must be set before the connection opens. Null, the default, decodes inline on the network thread.</p>
+     */
+    public void setDecodeExecutor(Executor decodeExecutor) {
+        setDecodeExecutor(decodeExecutor, DEFAULT_MAX_QUEUED_DECODE_BYTES);
+    }
+
+    /**
+     * Like {@link #setDecodeExecutor(Executor)}, pausing reads once more than the given number of payload bytes wait
+     * to be decoded. A single frame larger than that is still accepted, reads pause behind it.
+     */
+    public void setDecodeExecutor(Executor decodeExecutor, int maxQueuedDecodeBytes) {
+        checkArgument(maxQueuedDecodeBytes > 0, "maxQueuedDecodeBytes must be positive: %s", maxQueuedDecodeBytes);
+        this.maxQueuedDecodeBytes = maxQueuedDecodeBytes;
+        this.decodeExecutor = decodeExecutor;
+    }
+
+    /**
+     * <p>Restricts the messages this handler receives to the given commands. Messages with any other command are
+     * skipped over in the read buffer as they arrive: they are never buffered, checksummed, parsed or passed to
+     * {@link #processMessage(Message)}, so a peer sending traffic we don't use only costs socket bandwidth. Their
+     * headers are still checked against the size limits of {@link BitcoinSerializer}.</p>
+     *
+     * <p>Should be set before the connection opens. Null, the default, receives everything.</p>
+     */
+    public void setCommandAllowlist(String... commands) {
+        if (commands == null) {
+            allowedCommands = null;
+            return;
+        }
+        long[] allowed = new long[commands.length * 2];
+        for (int i = 0; i < commands.length; i++) {
+            allowed[i * 2] = CommandRegistry.commandHigh(commands[i]);
+            allowed[i * 2 + 1] = CommandRegistry.commandLow(commands[i]);
+        }
+        allowedCommands = allowed;
+    }
+
+    // Allowlists are short, so a linear scan over the header words beats hashing
+    private boolean isAllowed(BitcoinSerializer.BitcoinPacketHeader header) {
+        long[] allowed = allowedCommands;
+        if (allowed == null)
+            return true;
+        long high = header.getCommandHigh();
+        long low = header.getCommandLow();
+        for (int i = 0; i < allowed.length; i += 2) {
+            if (allowed[i] == high && allowed[i + 1] == low)
+                return true;
+        }
+        return false;
+    }
+
+    // Drops up to bytesToSkip bytes from buff, returning true once the whole skipped payload is gone
+    private boolean skipBytes(ByteBuffer buff) {
+        int n = Math.min(bytesToSkip, buff.remaining());
+        ((Buffer) buff).position(buff.position() + n);
+        bytesToSkip -= n;
+        return bytesToSkip == 0;
+    }
+
+    /**
+     * A frame handed to the decode executor. Results are picked up in queue order by drainDecoded().
+     */
+    private class DecodeTask implements Runnable {
+        private final BitcoinSerializer.BitcoinPacketHeader header;
+        private final byte[] payload;
+        private final SegmentedBuffer segmentedPayload;
+        private volatile Message result;
+        private volatile Exception error;
+        private volatile boolean done;
+
+        DecodeTask(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload, SegmentedBuffer segmentedPayload) {
+            this.header = new BitcoinSerializer.BitcoinPacketHeader(header);
+            this.payload = payload;
+            this.segmentedPayload = segmentedPayload;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (segmentedPayload != null)
+                    result = serializer.deserializePayload(header, segmentedPayload);
+                else
+                    result = serializer.deserializePayload(header, ByteBuffer.wrap(payload));
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                if (segmentedPayload != null)
+                    segmentedPayload.release();
+                done = true;
+            }
+            drainDecoded();
+        }
+    }
+
+    // Splits the payload of the frame whose header was just read off buff and queues it for decoding, without hashing
+    // or parsing it
+    private void submitFrame(ByteBuffer buff) {
+        if (buff.remaining() < header.getSize())
+            throw new BufferUnderflowException();
+        byte[] payload = new byte[header.getSize()];
+        buff.get(payload);
+        submitDecode(new DecodeTask(header, payload, null));
+    }
+
+    private void submitDecode(DecodeTask task) {
+        decodeQueue.add(task);
+        updateDecodeBacklog(task.header.getSize());
+        try {
+            decodeExecutor.execute(task);
+        } catch (RuntimeException e) {
+            // Eg a rejected execution, treat it like a frame which failed to decode
+            task.error = e;
+            task.done = true;
+            drainDecoded();
+        }
+    }
+
+    // Hands decoded messages to processMessage() in arrival order. Only one thread drains at a time, the others leave
+    // their results in the queue for it.
+    private void drainDecoded() {
+        while (true) {
+            if (!draining.compareAndSet(false, true))
+                return;
+            try {
+                DecodeTask task;
+                while ((task = decodeQueue.peek()) != null && task.done) {
+                    decodeQueue.poll();
+                    updateDecodeBacklog(-task.header.getSize());
+                    if (decodeFailed)
+                        continue;
+                    try {
+                        if (task.error != null)
+                            throw task.error;
+                        processMessage(task.result);
+                    } catch (Exception e) {
+                        // Everything behind a bad frame is dropped, the connection is being closed anyway
+                        decodeFailed = true;
+                        exceptionCaught(e);
+                    }
+                }
+            } finally {
+                draining.set(false);
+            }
+            // Another thread may have completed the head after we looked but before we let go of the flag
+            DecodeTask head = decodeQueue.peek();
+            if (head == null || !head.done)
+                return;
+        }
+    }
+
+    // Pauses reads once more than maxQueuedDecodeBytes wait to be decoded, and resumes them at half of that
+    private void updateDecodeBacklog(long delta) {
+        synchronized (decodeBacklogLock) {
+            queuedDecodeBytes += delta;
+            long limit = decodeReadsPaused ? maxQueuedDecodeBytes / 2 : maxQueuedDecodeBytes;
+            boolean pause = queuedDecodeBytes > limit;
+            if (pause != decodeReadsPaused) {
+                decodeReadsPaused = pause;
+                writeTarget.setReadsPaused(pause);
+            }
+        }
+    }
+
     @Override
     public int receiveBytes(ByteBuffer buff) {
         checkArgument(buff.position() == 0 &&
@@ -118,29 +348,54 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
             // Repeatedly try to deserialize messages until we hit a BufferUnderflowException
             boolean firstMessage = true;
             while (true) {
+                // If we are in the middle of skipping a message, drop the rest of it first
+                if (bytesToSkip > 0) {
+                    if (!skipBytes(buff))
+                        return buff.position();
+                    firstMessage = false;
+                }
                 // If we are in the middle of reading a message, try to fill that one first, before we expect another
                 if (largeReadBuffer != null) {
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    largeReadBuffer.append(buff);
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                    if (largeReadBuffer.isComplete() && decodeExecutor != null) {
+                        // ...handing it to the decode executor, which also releases it
+                        submitDecode(new DecodeTask(header, null, largeReadBuffer));
                         largeReadBuffer = null;
-                        header = null;
+                        firstMessage = false;
+                    } else if (largeReadBuffer.isComplete()) {
+                        // ...processing a message if one is available
+                        Message message;
+                        try {
+                            message = serializer.deserializePayload(header, largeReadBuffer);
+                        } finally {
+                            largeReadBuffer.release();
+                            largeReadBuffer = null;
+                        }
+                        processMessage(message);
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
                 // Now try to deserialize any messages left in buff
-                Message message;
+                Message message = null;
                 int preSerializePosition = buff.position();
                 try {
-                    message = serializer.deserialize(buff);
+                    serializer.seekPastMagicBytes(buff);
+                    serializer.deserializeHeader(buff, header);
+                    if (!isAllowed(header)) {
+                        // Skip the payload, across as many calls as it takes to arrive
+                        bytesToSkip = header.getSize();
+                        firstMessage = false;
+                        continue;
+                    }
+                    if (decodeExecutor != null)
+                        submitFrame(buff);
+                    else
+                        message = serializer.deserializePayload(header, buff);
                 } catch (BufferUnderflowException e) {
                     // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
                     //e.printStackTrace();
@@ -149,12 +404,11 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                         ((Buffer) buff).position(0);
                         try {
                             serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
+                            serializer.deserializeHeader(buff, header);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            largeReadBuffer = new SegmentedBuffer(REASSEMBLY_CHUNK_POOL, header.getSize(), payloadDigest);
+                            largeReadBuffer.append(buff);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -170,7 +424,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
-                processMessage(message);
+                if (message != null)
+                    processMessage(message);
                 firstMessage = false;
             }
         } catch (Exception e) {
@@ -200,6 +455,23 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
             writeTarget.closeConnection();
     }
 
+    /**
+     * Records whether the write target can take more data. Subclasses which want to throttle what they send may
+     * override this, but must call the super implementation.
+     */
+    @Override
+    public void writabilityChanged(boolean writable) {
+        this.writable = writable;
+    }
+
+    /**
+     * Returns false while more bytes are queued for this peer than the write target's high water mark. Messages sent
+     * in the meantime are still queued, but callers producing bulk traffic should wait for the queue to drain.
+     */
+    public boolean isWritable() {
+        return writable;
+    }
+
     @Override
     public int getMaxMessageSize() {
         return Message.MAX_SIZE;
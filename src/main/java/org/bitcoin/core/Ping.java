@@ -1,8 +1,5 @@
 package org.bitcoin.core;
 
-import java.io.IOException;
-import java.io.OutputStream;
-
 /**
  * <p>Instances of this class are not safe for use by multiple threads.</p>
  */
@@ -13,6 +10,10 @@ public class Ping extends Message {
     public Ping(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
         super(params, payloadBytes, 0);
     }
+
+    public Ping(NetworkParameters params, PayloadReader payload) throws ProtocolException {
+        super(params, payload, params.getDefaultSerializer(), UNKNOWN_LENGTH);
+    }
     
     /**
      * Create a Ping with a nonce value.
@@ -32,9 +33,14 @@ public class Ping extends Message {
     }
     
     @Override
-    public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+    protected void bitcoinSerializeToWriter(PayloadWriter writer) {
         if (hasNonce)
-            Utils.int64ToByteStreamLE(nonce, stream);
+            writer.writeInt64(nonce);
+    }
+
+    @Override
+    protected int computeSerializedSize() {
+        return hasNonce ? 8 : 0;
     }
 
     @Override
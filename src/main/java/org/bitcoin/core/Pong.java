@@ -1,8 +1,5 @@
 package org.bitcoin.core;
 
-import java.io.IOException;
-import java.io.OutputStream;
-
 /**
  * <p>Instances of this class are not safe for use by multiple threads.</p>
  */
@@ -12,6 +9,10 @@ public class Pong extends Message {
     public Pong(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
         super(params, payloadBytes, 0);
     }
+
+    public Pong(NetworkParameters params, PayloadReader payload) throws ProtocolException {
+        super(params, payload, params.getDefaultSerializer(), UNKNOWN_LENGTH);
+    }
     
     /**
      * Create a Pong with a nonce value.
@@ -28,8 +29,13 @@ public class Pong extends Message {
     }
     
     @Override
-    public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
-        Utils.int64ToByteStreamLE(nonce, stream);
+    protected int computeSerializedSize() {
+        return 8;
+    }
+
+    @Override
+    protected void bitcoinSerializeToWriter(PayloadWriter writer) {
+        writer.writeInt64(nonce);
     }
     
     /** Returns the nonce sent by the remote peer. */
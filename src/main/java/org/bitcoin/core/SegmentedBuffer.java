@@ -0,0 +1,150 @@
+package org.bitcoin.core;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Accumulates a payload of known length into fixed size chunks taken from a {@link ByteBufferPool}. Chunks are only
+ * taken as bytes actually arrive, so a peer announcing a large message costs nothing until it sends the data, and no
+ * single allocation is larger than one chunk.</p>
+ *
+ * <p>Once complete the payload can be read as a composite via {@link #buffers()} or copied out. Call
+ * {@link #release()} to hand the chunks back to the pool when done.</p>
+ *
+ * <p>If given a SHA-256 digest, every byte is also hashed as it is appended, so the payload's double SHA-256 is ready
+ * in {@link #getHash()} as soon as the last byte lands rather than needing another pass over the whole payload.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class SegmentedBuffer {
+    private final ByteBufferPool pool;
+    private final int capacity;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private int size = 0;
+    private final MessageDigest digest;
+    private byte[] hash;
+
+    /**
+     * @param pool where chunks are taken from and returned to
+     * @param capacity the total number of bytes expected
+     */
+    public SegmentedBuffer(ByteBufferPool pool, int capacity) {
+        this(pool, capacity, null);
+    }
+
+    /**
+     * @param pool where chunks are taken from and returned to
+     * @param capacity the total number of bytes expected
+     * @param digest a SHA-256 digest to hash the payload with as it arrives, or null. It is reset first and may be
+     *               reused once this buffer is complete.
+     */
+    public SegmentedBuffer(ByteBufferPool pool, int capacity, MessageDigest digest) {
+        checkArgument(capacity >= 0, "capacity must not be negative: %s", capacity);
+        this.pool = pool;
+        this.capacity = capacity;
+        this.digest = digest;
+        if (digest != null) {
+            digest.reset();
+            if (capacity == 0)
+                hash = digest.digest(digest.digest());
+        }
+    }
+
+    /**
+     * Copies as many bytes from src as are still missing, advancing its position accordingly.
+     *
+     * @return the number of bytes taken
+     */
+    public int append(ByteBuffer src) {
+        int wanted = Math.min(src.remaining(), capacity - size);
+        int left = wanted;
+        while (left > 0) {
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = pool.acquire();
+                chunks.add(chunk);
+            }
+            int n = Math.min(left, chunk.remaining());
+            ByteBuffer slice = src.duplicate();
+            ((Buffer) slice).limit(slice.position() + n);
+            if (digest != null) {
+                // Hashing consumes the slice, so rewind it for the copy
+                digest.update(slice);
+                ((Buffer) slice).position(src.position());
+            }
+            chunk.put(slice);
+            ((Buffer) src).position(src.position() + n);
+            left -= n;
+        }
+        size += wanted;
+        if (digest != null && wanted > 0 && size == capacity)
+            hash = digest.digest(digest.digest());
+        return wanted;
+    }
+
+    /**
+     * Returns the double SHA-256 of the payload once it is complete and this buffer was given a digest, or null
+     * otherwise.
+     */
+    public byte[] getHash() {
+        return hash;
+    }
+
+    /** The number of bytes received so far. */
+    public int size() {
+        return size;
+    }
+
+    /** The total number of bytes expected. */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Whether all expected bytes have been received. */
+    public boolean isComplete() {
+        return size == capacity;
+    }
+
+    /**
+     * Returns read-only views of the bytes received so far, one per chunk and in order. The views are only valid until
+     * {@link #release()}.
+     */
+    public ByteBuffer[] buffers() {
+        ByteBuffer[] views = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < views.length; i++) {
+            ByteBuffer view = chunks.get(i).asReadOnlyBuffer();
+            ((Buffer) view).flip();
+            views[i] = view;
+        }
+        return views;
+    }
+
+    /** Copies the bytes received so far into a new array. */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (ByteBuffer chunk : chunks) {
+            int n = chunk.position();
+            ByteBuffer view = chunk.duplicate();
+            ((Buffer) view).flip();
+            view.get(bytes, offset, n);
+            offset += n;
+        }
+        checkState(offset == size);
+        return bytes;
+    }
+
+    /** Gives all chunks back to the pool. This buffer must not be used afterwards. */
+    public void release() {
+        for (ByteBuffer chunk : chunks)
+            pool.release(chunk);
+        chunks.clear();
+        size = 0;
+    }
+}
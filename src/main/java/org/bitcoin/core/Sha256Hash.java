@@ -8,6 +8,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -188,6 +189,17 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         return digest.digest(digest.digest());
     }
 
+    /**
+     * Calculates the hash of hash on the bytes remaining in the given buffers, in order, without changing their
+     * positions. This is equivalent to concatenating them and passing the result to {@link #hashTwice(byte[])}.
+     */
+    public static byte[] hashTwice(ByteBuffer... buffers) {
+        MessageDigest digest = newDigest();
+        for (ByteBuffer buffer : buffers)
+            digest.update(buffer.duplicate());
+        return digest.digest(digest.digest());
+    }
+
     /**
      * Calculates the hash of hash on the given byte ranges. This is equivalent to
      * concatenating the two ranges and then passing the result to {@link #hashTwice(byte[])}.
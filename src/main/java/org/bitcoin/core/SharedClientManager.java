@@ -0,0 +1,73 @@
+package org.bitcoin.core;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.Service;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A reference counted {@link ClientConnectionManager} shared by many {@link NioClient}s, so that they all run on
+ * the same selector thread(s) instead of starting one each.</p>
+ *
+ * <p>The first {@link #retain()} starts a manager and the matching last {@link #release()} stops it. As a stopped
+ * service can't be restarted, a later {@link #retain()} gets a fresh manager from the supplier.</p>
+ *
+ * <p>Instances of this class are thread safe.</p>
+ */
+public class SharedClientManager {
+    private final Supplier<? extends ClientConnectionManager> supplier;
+
+    // Guarded by this
+    private ClientConnectionManager manager;
+    private int refCount = 0;
+
+    /** Shares single selector {@link NioClientManager}s. */
+    public SharedClientManager() {
+        this(new Supplier<ClientConnectionManager>() {
+            @Override
+            public ClientConnectionManager get() {
+                return new NioClientManager();
+            }
+        });
+    }
+
+    /**
+     * @param supplier creates the manager each time the reference count goes from zero to one
+     */
+    public SharedClientManager(Supplier<? extends ClientConnectionManager> supplier) {
+        this.supplier = checkNotNull(supplier);
+    }
+
+    /**
+     * Takes a reference to the shared manager, starting it if this is the first one. Blocks until the manager is
+     * running. Every call must be balanced by a call to {@link #release()}.
+     */
+    public synchronized ClientConnectionManager retain() {
+        if (refCount == 0) {
+            manager = supplier.get();
+            checkState(manager.state() == Service.State.NEW, "Supplier must return a new manager");
+            manager.startAsync();
+        }
+        manager.awaitRunning();
+        refCount++;
+        return manager;
+    }
+
+    /**
+     * Gives back a reference taken by {@link #retain()}, stopping the manager (without waiting for it) once the last
+     * reference is gone.
+     */
+    public synchronized void release() {
+        checkState(refCount > 0, "release() without matching retain()");
+        if (--refCount == 0) {
+            manager.stopAsync();
+            manager = null;
+        }
+    }
+
+    /** Returns the number of outstanding references. */
+    public synchronized int getRefCount() {
+        return refCount;
+    }
+}
@@ -36,6 +36,16 @@ public interface StreamConnection {
      */
     void setWriteTarget(MessageWriteTarget writeTarget);
 
+    /**
+     * Called when the outbound queue of the underlying write target crosses one of its water marks. {@code false} means
+     * more bytes are queued than the high water mark allows and the connection should hold back on writing until it
+     * is called again with {@code true}, once the queue has drained below the low water mark. {@code false} is
+     * reported on the thread whose write pushed the queue over the high water mark, {@code true} on the network thread
+     * which drained it, in both cases without the write target's write lock held. Calls for one connection never
+     * overlap and the last one always reflects the current state.
+     */
+    void writabilityChanged(boolean writable);
+
     /**
      * Returns the maximum message size of a message on the socket. This is used in calculating size of buffers to
      * allocate.
@@ -9,6 +9,15 @@ public class UnknownMessage extends EmptyMessage {
         this.name = name;
     }
 
+    /**
+     * Stands in for a message whose payload was verified but not kept, see
+     * {@link BitcoinSerializer#deserializePayload(BitcoinSerializer.BitcoinPacketHeader, SegmentedBuffer)}.
+     */
+    public UnknownMessage(NetworkParameters params, String name) {
+        super(params);
+        this.name = name;
+    }
+
     @Override
     public String toString() {
         return "Unknown message [" + name + "]" + (payload == null ? "" : ": " + Utils.HEX.encode(payload));
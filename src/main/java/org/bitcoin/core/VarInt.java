@@ -21,6 +21,12 @@ public class VarInt {
         originallyEncodedSize = getSizeInBytes();
     }
 
+    // For values read by PayloadReader, which already knows the size they were encoded with
+    VarInt(long value, int originallyEncodedSize) {
+        this.value = value;
+        this.originallyEncodedSize = originallyEncodedSize;
+    }
+
     /**
      * Constructs a new VarInt with the value parsed from the specified offset of the given buffer.
      *
@@ -1,10 +1,9 @@
 package org.bitcoin.core;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Utf8;
 import com.google.common.net.InetAddresses;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
@@ -83,6 +82,10 @@ public class VersionMessage extends Message {
         super(params, payload, 0);
     }
 
+    public VersionMessage(NetworkParameters params, PayloadReader payload) throws ProtocolException {
+        super(params, payload, params.getDefaultSerializer(), UNKNOWN_LENGTH);
+    }
+
     // It doesn't really make sense to ever lazily parse a version message or to retain the backing bytes.
     // If you're receiving this on the wire you need to check the protocol version and it will never need to be sent
     // back down the wire.
@@ -114,11 +117,9 @@ public class VersionMessage extends Message {
         //时间戳
         time = readUint64().longValue();
         //接受地址
-        receivingAddr = new PeerAddress(params, payload, cursor, this, serializer.withProtocolVersion(0));
-        cursor += receivingAddr.getMessageSize();
+        receivingAddr = readPeerAddress();
         if (clientVersion >= 106) {
-            fromAddr = new PeerAddress(params, payload, cursor, this, serializer.withProtocolVersion(0));
-            cursor += fromAddr.getMessageSize();
+            fromAddr = readPeerAddress();
             // uint64 localHostNonce (random data)
             // We don't care about the localhost nonce. It's used to detect connecting back to yourself in cases where
             // there are NATs and proxies in the way. However we don't listen for inbound connections so it's
@@ -143,28 +144,42 @@ public class VersionMessage extends Message {
         length = cursor - offset;
     }
 
+    // Reads an address in the version message format, from whichever of payload or reader this message is parsed from
+    private PeerAddress readPeerAddress() throws ProtocolException {
+        MessageSerializer addressSerializer = serializer.withProtocolVersion(0);
+        PeerAddress address = reader != null ? new PeerAddress(params, reader, this, addressSerializer)
+                : new PeerAddress(params, payload, cursor, this, addressSerializer);
+        cursor += address.getMessageSize();
+        return address;
+    }
+
+    @Override
+    protected int computeSerializedSize() {
+        int subVerLength = Utf8.encodedLength(subVer);
+        int size = 4 + 8 + 8 + receivingAddr.knownSerializedSize() + fromAddr.knownSerializedSize() + 8 +
+                VarInt.sizeOf(subVerLength) + subVerLength + 4;
+        if (clientVersion >= params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.BLOOM_FILTER))
+            size += 1;
+        return size;
+    }
+
     @Override
-    public void bitcoinSerializeToStream(OutputStream buf) throws IOException {
-        Utils.uint32ToByteStreamLE(clientVersion, buf);
-        Utils.uint32ToByteStreamLE(localServices, buf);
-        Utils.uint32ToByteStreamLE(localServices >> 32, buf);
-        Utils.uint32ToByteStreamLE(time, buf);
-        Utils.uint32ToByteStreamLE(time >> 32, buf);
-        receivingAddr.bitcoinSerializeToStream(buf);
-        fromAddr.bitcoinSerializeToStream(buf);
+    protected void bitcoinSerializeToWriter(PayloadWriter writer) {
+        writer.writeUint32(clientVersion);
+        writer.writeInt64(localServices);
+        writer.writeInt64(time);
+        receivingAddr.bitcoinSerializeToWriter(writer);
+        fromAddr.bitcoinSerializeToWriter(writer);
         // Next up is the "local host nonce", this is to detect the case of connecting
         // back to yourself. We don't care about this as we won't be accepting inbound
         // connections.
-        Utils.uint32ToByteStreamLE(0, buf);
-        Utils.uint32ToByteStreamLE(0, buf);
+        writer.writeInt64(0);
         // Now comes subVer.
-        byte[] subVerBytes = subVer.getBytes(StandardCharsets.UTF_8);
-        buf.write(new VarInt(subVerBytes.length).encode());
-        buf.write(subVerBytes);
+        writer.writeVarBytes(subVer.getBytes(StandardCharsets.UTF_8));
         // Size of known block chain.
-        Utils.uint32ToByteStreamLE(bestHeight, buf);
+        writer.writeUint32(bestHeight);
         if (clientVersion >= params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.BLOOM_FILTER)) {
-            buf.write(relayTxesBeforeFilter ? 1 : 0);
+            writer.writeByte(relayTxesBeforeFilter ? 1 : 0);
         }
     }
 
@@ -0,0 +1,269 @@
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BitcoinSerializerTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    // An addr message with a single IPv4 entry
+    private static final String ADDRESS_MESSAGE_HEX = "01" // number of entries
+            + "61bc6649" // time
+            + "0100000000000000" // service flags, NODE_NETWORK
+            + "00000000000000000000ffff0a000001" // address, fixed 16 bytes (IPv4 embedded in IPv6)
+            + "208d"; // port
+
+    @Test
+    public void pooledSerializationMatchesStream() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteBufferPool pool = new ByteBufferPool(64, 4, false);
+        Message[] messages = {
+                new Ping(100),
+                new AddressV1Message(MAINNET, Utils.HEX.decode(ADDRESS_MESSAGE_HEX))
+        };
+        for (Message message : messages) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            serializer.serialize(message, expected);
+
+            ByteBuffer buffer = serializer.serialize(message, pool);
+            byte[] actual = new byte[buffer.remaining()];
+            buffer.get(actual);
+            assertArrayEquals(expected.toByteArray(), actual);
+            pool.release(buffer);
+        }
+    }
+
+    @Test
+    public void pooledSerializationSpillsOverLargeMessages() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        // Too small for even the header, so the payload has to spill over into a heap buffer
+        ByteBufferPool pool = new ByteBufferPool(16, 4, false);
+        ByteBuffer buffer = serializer.serialize(new Ping(100), pool);
+        assertEquals(24 + 8, buffer.remaining());
+    }
+
+    @Test
+    public void reusedHeaderDecodesEachMessage() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] addrPayload = new AddressV1Message(MAINNET, Utils.HEX.decode(ADDRESS_MESSAGE_HEX)).bitcoinSerialize();
+        serializer.serialize(new Ping(100), out);
+        serializer.serialize("addr", addrPayload, out);
+        ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+
+        BitcoinSerializer.BitcoinPacketHeader header = new BitcoinSerializer.BitcoinPacketHeader();
+        assertTrue(serializer.deserialize(in, header) instanceof Ping);
+        assertEquals("ping", header.getCommand());
+        assertEquals(8, header.getSize());
+
+        assertTrue(serializer.deserialize(in, header) instanceof AddressV1Message);
+        assertEquals("addr", header.getCommand());
+        assertEquals(addrPayload.length, header.getSize());
+        byte[] hash = Sha256Hash.hashTwice(addrPayload);
+        assertEquals(ByteBuffer.wrap(hash).getInt(), header.getChecksum());
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void lazyParsingDefersAddresses() throws Exception {
+        byte[] payload = new AddressV1Message(MAINNET, Utils.HEX.decode(ADDRESS_MESSAGE_HEX)).bitcoinSerialize();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MAINNET.getDefaultSerializer().serialize("addr", payload, out);
+
+        BitcoinSerializer lazy = MAINNET.getSerializer(true).withParseLazy(true);
+        AddressMessage message = (AddressMessage) lazy.deserialize(ByteBuffer.wrap(out.toByteArray()));
+        assertFalse(message.isParsed());
+        assertEquals(1, message.getAddressCount());
+        assertEquals(payload.length, message.getMessageSize());
+        assertArrayEquals(payload, message.bitcoinSerialize());
+        assertFalse(message.isParsed());
+
+        assertEquals(1, message.getAddresses().size());
+        assertTrue(message.isParsed());
+        CompactPeerAddress address = message.getAddresses().get(0).toCompact();
+        assertEquals(0x4966bc61L, address.getTime());
+        assertEquals(1, address.getServices());
+        assertEquals(new InetSocketAddress("10.0.0.1", 8333), address.toSocketAddress());
+        assertArrayEquals(payload, message.bitcoinSerialize());
+    }
+
+    @Test
+    public void lazyParsingHonoursNonMinimalVarInts() throws Exception {
+        // Two addrv2 entries, the first with its services and address length needlessly encoded in three bytes
+        byte[] payload = Utils.HEX.decode("02"
+                + "61bc6649" + "fd0100" + "01" + "fd0400" + "0a000001" + "208d"
+                + "61bc6649" + "01" + "01" + "04" + "0a000002" + "208d");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MAINNET.getDefaultSerializer().serialize("addrv2", payload, out);
+
+        BitcoinSerializer lazy = MAINNET.getSerializer(true).withParseLazy(true);
+        AddressMessage message = (AddressMessage) lazy.deserialize(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(payload.length, message.getMessageSize());
+        assertEquals(new InetSocketAddress("10.0.0.2", 8333), message.getAddresses().get(1).toSocketAddress());
+        assertEquals(payload.length, message.getMessageSize());
+        assertEquals(1, message.getAddresses().get(0).toCompact().getServices());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void oversizedPingRejectedAtHeader() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize("ping", new byte[9], out);
+        ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+        serializer.seekPastMagicBytes(in);
+        // Only the header is needed to reject it
+        ((Buffer) in).limit(24);
+        serializer.deserializeHeader(in);
+    }
+
+    @Test
+    public void fullAddrV2OfUnknownNetworksAccepted() throws Exception {
+        // 1000 entries of a network we don't know, with the longest address BIP155 allows
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(new VarInt(1000).encode());
+        for (int i = 0; i < 1000; i++) {
+            payload.write(Utils.HEX.decode("61bc6649" + "00" + "09" + "fd0002"));
+            payload.write(new byte[512]);
+            payload.write(Utils.HEX.decode("208d"));
+        }
+        MessageSerializer serializer = MAINNET.getSerializer(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize("addrv2", payload.toByteArray(), out);
+        AddressMessage message = (AddressMessage) serializer.deserialize(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(1000, message.getAddresses().size());
+    }
+
+    @Test
+    public void seekPastMagicBytesResynchronizes() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        byte[] magic = {(byte) 0xf9, (byte) 0xbe, (byte) 0xb4, (byte) 0xd9};
+        // The magic at every offset within and across the 8 byte scan words, behind garbage containing its first byte
+        for (int offset = 0; offset < 20; offset++) {
+            byte[] bytes = new byte[offset + 4 + 3];
+            for (int i = 0; i < offset; i++)
+                bytes[i] = i % 3 == 0 ? magic[0] : (byte) i;
+            System.arraycopy(magic, 0, bytes, offset, 4);
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            serializer.seekPastMagicBytes(in);
+            assertEquals(offset + 4, in.position());
+        }
+
+        // A partial magic running straight into the real one
+        ByteBuffer in = ByteBuffer.wrap(new byte[] {1, (byte) 0xf9, (byte) 0xbe, (byte) 0xf9, (byte) 0xbe, (byte) 0xb4, (byte) 0xd9, 2});
+        serializer.seekPastMagicBytes(in);
+        assertEquals(7, in.position());
+
+        // No magic at all consumes everything
+        in = ByteBuffer.wrap(new byte[] {(byte) 0xf9, (byte) 0xbe, (byte) 0xb4, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xf9, (byte) 0xbe, (byte) 0xb4});
+        serializer.seekPastMagicBytes(in);
+        assertEquals(in.limit(), in.position());
+    }
+
+    @Test
+    public void versionParsedStraightFromDirectBuffer() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        byte[] payload = Utils.HEX.decode("80110100" + "0100000000000000" + "5922d46a00000000" +
+                "0000000000000000" + "00000000000000000000ffff0a000001" + "208d" +
+                "0000000000000000" + "00000000000000000000ffff7f000001" + "208d" +
+                "0102030405060708" + "03" + "2f782f" + "d2040000" + "01");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize("version", payload, out);
+        serializer.serialize(new Ping(99), out);
+        ByteBuffer in = ByteBuffer.allocateDirect(out.size());
+        in.put(out.toByteArray());
+        ((Buffer) in).flip();
+
+        VersionMessage read = (VersionMessage) serializer.deserialize(in);
+        assertEquals(70016, read.clientVersion);
+        assertEquals(1, read.localServices);
+        assertEquals(0x6ad42259L, read.time);
+        assertEquals(new InetSocketAddress("10.0.0.1", 8333), read.receivingAddr.toSocketAddress());
+        assertEquals(new InetSocketAddress("127.0.0.1", 8333), read.fromAddr.toSocketAddress());
+        assertEquals("/x/", read.subVer);
+        assertEquals(1234, read.bestHeight);
+        assertTrue(read.relayTxesBeforeFilter);
+        assertEquals(payload.length, read.getMessageSize());
+        assertEquals(99, ((Ping) serializer.deserialize(in)).getNonce());
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void versionRoundTrip() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        VersionMessage version = new VersionMessage(MAINNET, 1234);
+        version.clientVersion = 70016;
+        version.localServices = 1;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(version, out);
+
+        VersionMessage read = (VersionMessage) serializer.deserialize(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(version.time, read.time);
+        assertEquals(version.subVer, read.subVer);
+        assertEquals(version.fromAddr.toSocketAddress(), read.fromAddr.toSocketAddress());
+        assertArrayEquals(version.bitcoinSerialize(), read.bitcoinSerialize());
+        ByteBuffer pooled = serializer.serialize(version, new ByteBufferPool(16, 1, false));
+        assertEquals(ByteBuffer.wrap(out.toByteArray()), pooled);
+    }
+
+    @Test
+    public void serializedSizeMatchesSerialization() throws Exception {
+        VersionMessage version = new VersionMessage(MAINNET, 1234);
+        version.clientVersion = 70016;
+        version.subVer = "/\u00e9/";
+        String entry = "61bc6649" + "0100000000000000" + "00000000000000000000ffff0a000001" + "208d";
+        AddressV1Message addr = new AddressV1Message(MAINNET, Utils.HEX.decode("02" + entry + entry));
+        // Drops the cached bytes, so the size has to be computed from the remaining entry
+        addr.removeAddress(0);
+        Message[] messages = {new Ping(1), new Ping(), new Pong(2), version, addr, addr.getAddresses().get(0),
+                new SendAddrV2Message(MAINNET)};
+        for (Message message : messages) {
+            int size = message.serializedSize();
+            assertEquals(message.getClass().getSimpleName(), message.bitcoinSerialize().length, size);
+        }
+    }
+
+    @Test
+    public void receivedMessageRelayedAsIs() throws Exception {
+        MessageSerializer serializer = MAINNET.getSerializer(true).withParseLazy(true);
+        String[] commands = {"addr", "addrv2"};
+        String[] payloads = {
+                ADDRESS_MESSAGE_HEX,
+                // A single addrv2 entry: time, services, IPv4 network id, address with its length, port
+                "01" + "61bc6649" + "01" + "01" + "04" + "0a000001" + "208d"
+        };
+        for (int i = 0; i < commands.length; i++) {
+            byte[] payload = Utils.HEX.decode(payloads[i]);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.serialize(commands[i], payload, out);
+            byte[] frame = out.toByteArray();
+            AddressMessage message = (AddressMessage) serializer.deserialize(ByteBuffer.wrap(frame));
+            assertTrue(message.isRelayable());
+
+            // Both serialization paths reproduce the received frame, without having parsed the addresses
+            ByteArrayOutputStream relayed = new ByteArrayOutputStream();
+            serializer.serialize(message, relayed);
+            assertArrayEquals(frame, relayed.toByteArray());
+            ByteBuffer pooled = serializer.serialize(message, new ByteBufferPool(4096, 1, false));
+            assertEquals(ByteBuffer.wrap(frame), pooled);
+            assertFalse(message.isParsed());
+
+            // The checksum is the one the frame arrived with, which is that of the payload
+            BitcoinSerializer.BitcoinPacketHeader header = new BitcoinSerializer.BitcoinPacketHeader();
+            serializer.seekPastMagicBytes(pooled);
+            serializer.deserializeHeader(pooled, header);
+            assertEquals(commands[i], header.getCommand());
+            assertEquals(payload.length, header.getSize());
+            assertEquals(ByteBuffer.wrap(Sha256Hash.hashTwice(payload)).getInt(), header.getChecksum());
+            assertEquals(ByteBuffer.wrap(payload), pooled);
+
+            // A changed message is serialized and hashed afresh
+            message.removeAddress(0);
+            assertFalse(message.isRelayable());
+        }
+    }
+}
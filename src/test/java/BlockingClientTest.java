@@ -0,0 +1,189 @@
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BlockingClientTest {
+    private static final int ROUND_TRIPS = 200;
+    private static final int MESSAGE_SIZE = 100;
+
+    @Test
+    public void connectReadWriteClose() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            RecordingConnection connection = new RecordingConnection();
+            Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
+            BlockingClient client = new BlockingClient(server.getLocalSocketAddress(), connection, 1000,
+                    SocketFactory.getDefault(), Executors.defaultThreadFactory(), clients);
+            Socket accepted = server.accept();
+            assertEquals(server.getLocalSocketAddress(), client.getConnectFuture().get(5, TimeUnit.SECONDS));
+            assertTrue(connection.opened.await(5, TimeUnit.SECONDS));
+            assertEquals(1, clients.size());
+
+            // Heap and direct buffers both reach the socket whole
+            client.writeBytes(new byte[] {1, 2, 3});
+            ByteBuffer direct = ByteBuffer.allocateDirect(2);
+            direct.put((byte) 4).put((byte) 5).flip();
+            client.writeBuffer(direct);
+            assertFalse(direct.hasRemaining());
+            byte[] written = new byte[5];
+            readFully(accepted.getInputStream(), written);
+            assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, written);
+
+            // Bytes from the server are handed to the connection
+            accepted.getOutputStream().write(new byte[] {6, 7});
+            assertArrayEquals(new byte[] {6, 7}, connection.received.poll(5, TimeUnit.SECONDS));
+
+            client.closeConnection();
+            assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+            assertEquals(-1, accepted.getInputStream().read());
+            assertTrue(clients.isEmpty());
+            accepted.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void failedConnectFailsFuture() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        InetSocketAddress address = (InetSocketAddress) server.getLocalSocketAddress();
+        server.close();
+        RecordingConnection connection = new RecordingConnection();
+        BlockingClient client = new BlockingClient(address, connection, 1000, SocketFactory.getDefault(),
+                Executors.defaultThreadFactory(), null);
+        try {
+            client.getConnectFuture().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void loopbackRoundTripsThroughBothManagers() throws Exception {
+        // The same echo exchange through the blocking and the selector based manager
+        ClientConnectionManager[] managers = {new BlockingClientManager(), new NioClientManager()};
+        for (ClientConnectionManager manager : managers) {
+            ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            Thread echo = startEchoServer(server);
+            manager.startAsync().awaitRunning();
+            try {
+                RecordingConnection connection = new RecordingConnection();
+                manager.openConnection(server.getLocalSocketAddress(), connection).get(5, TimeUnit.SECONDS);
+                assertEquals(1, manager.getConnectedClientCount());
+                byte[] message = new byte[MESSAGE_SIZE];
+                for (int i = 0; i < ROUND_TRIPS; i++) {
+                    Arrays.fill(message, (byte) i);
+                    connection.writeTarget.writeBytes(message.clone());
+                    int received = 0;
+                    while (received < MESSAGE_SIZE) {
+                        byte[] bytes = connection.received.poll(5, TimeUnit.SECONDS);
+                        assertNotNull(bytes);
+                        for (byte b : bytes)
+                            assertEquals((byte) i, b);
+                        received += bytes.length;
+                    }
+                    assertEquals(MESSAGE_SIZE, received);
+                }
+                manager.closeConnections(1);
+                assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+            } finally {
+                manager.stopAsync().awaitTerminated();
+                server.close();
+                echo.join(5000);
+            }
+        }
+    }
+
+    private static Thread startEchoServer(final ServerSocket server) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (Socket socket = server.accept()) {
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int read;
+                    while ((read = in.read(buffer)) != -1)
+                        out.write(buffer, 0, read);
+                } catch (IOException e) {
+                    // The test closed the connection or the server
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int read = 0;
+        while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n == -1)
+                throw new IOException("Stream ended early");
+            read += n;
+        }
+    }
+
+    // Hands every read over to the test, consuming all of it
+    private static class RecordingConnection implements StreamConnection {
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final BlockingQueue<byte[]> received = new ArrayBlockingQueue<>(ROUND_TRIPS * MESSAGE_SIZE);
+        volatile MessageWriteTarget writeTarget;
+
+        @Override
+        public void connectionClosed() {
+            closed.countDown();
+        }
+
+        @Override
+        public void connectionOpened() {
+            opened.countDown();
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            received.add(bytes);
+            return buff.position();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public void writabilityChanged(boolean writable) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 0;
+        }
+    }
+}
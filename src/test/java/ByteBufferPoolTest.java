@@ -0,0 +1,37 @@
+import org.bitcoin.core.ByteBufferPool;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+    @Test
+    public void reusesReleasedBuffers() {
+        ByteBufferPool pool = new ByteBufferPool(64, 2, false);
+        ByteBuffer first = pool.acquire();
+        first.putInt(42);
+        pool.release(first);
+        assertEquals(1, pool.getPooledCount());
+
+        ByteBuffer second = pool.acquire();
+        assertSame(first, second);
+        // Buffers always come back cleared
+        assertEquals(0, second.position());
+        assertEquals(64, second.limit());
+        assertEquals(0, pool.getPooledCount());
+    }
+
+    @Test
+    public void dropsForeignAndSurplusBuffers() {
+        ByteBufferPool pool = new ByteBufferPool(64, 1, false);
+        pool.release(ByteBuffer.allocate(32));
+        pool.release(ByteBuffer.allocateDirect(64));
+        pool.release(ByteBuffer.allocate(64).asReadOnlyBuffer());
+        assertEquals(0, pool.getPooledCount());
+
+        pool.release(ByteBuffer.allocate(64));
+        pool.release(ByteBuffer.allocate(64));
+        assertEquals(1, pool.getPooledCount());
+    }
+}
@@ -0,0 +1,138 @@
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactPeerAddressTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    @Test
+    public void roundTripsEveryFormat() throws Exception {
+        byte[] torV3 = new byte[32];
+        Arrays.fill(torV3, (byte) 0x5a);
+        CompactPeerAddress[] addresses = {
+                new CompactPeerAddress(CompactPeerAddress.NETWORK_IPV4, new byte[] {10, 0, 0, 1}, 8333, 1, 1600000000),
+                new CompactPeerAddress(CompactPeerAddress.NETWORK_IPV6,
+                        InetAddress.getByName("2001:db8::1").getAddress(), 18333, 0x409, 0xFFFFFFFFL),
+                new CompactPeerAddress(CompactPeerAddress.NETWORK_TORV2, new byte[10], 65535, 0, 0),
+                new CompactPeerAddress(CompactPeerAddress.NETWORK_TORV3, torV3, 9050, 1, 1600000000),
+        };
+        for (int protocolVersion = 0; protocolVersion <= 2; protocolVersion++) {
+            for (CompactPeerAddress address : addresses) {
+                if (protocolVersion < 2 && address.getNetworkId() == CompactPeerAddress.NETWORK_TORV3)
+                    continue;
+                PayloadWriter writer = new PayloadWriter(4);
+                address.write(writer, protocolVersion);
+                PayloadReader reader = new PayloadReader(ByteBuffer.wrap(writer.toByteArray()));
+                CompactPeerAddress read = CompactPeerAddress.read(reader, protocolVersion);
+                assertFalse(reader.hasRemaining());
+                assertEquals(address, read);
+                assertEquals(address.getServices(), read.getServices());
+                assertEquals(protocolVersion == 0 ? 0 : address.getTime(), read.getTime());
+            }
+        }
+        assertEquals(InetAddress.getByName("10.0.0.1"), addresses[0].getAddr());
+        assertEquals(65535, addresses[2].getPort());
+        assertEquals("aaaaaaaaaaaaaaaa.onion", addresses[2].getHostname());
+        assertTrue(addresses[3].getHostname().endsWith(".onion"));
+        assertEquals(addresses[3], addresses[3].toPeerAddress(MAINNET).toCompact());
+    }
+
+    @Test
+    public void equalityIgnoresTimeAndServices() {
+        CompactPeerAddress address = new CompactPeerAddress(CompactPeerAddress.NETWORK_IPV4, new byte[] {1, 2, 3, 4}, 8333, 0, 0);
+        CompactPeerAddress gossipedAgain = address.withTimeAndServices(1600000000, 1);
+        assertEquals(address, gossipedAgain);
+        assertEquals(address.hashCode(), gossipedAgain.hashCode());
+        assertEquals(1, gossipedAgain.getServices());
+        assertNotEquals(address, new CompactPeerAddress(CompactPeerAddress.NETWORK_IPV4, new byte[] {1, 2, 3, 4}, 8334, 0, 0));
+        assertNotEquals(address, new CompactPeerAddress(CompactPeerAddress.NETWORK_IPV4, new byte[] {1, 2, 3, 5}, 8333, 0, 0));
+    }
+
+    @Test
+    public void compactAddressesMatchParsedOnes() throws Exception {
+        String torV3 = repeat("5a", 32);
+        String[] commands = {"addr", "addrv2"};
+        String[] payloads = {
+                "02"
+                        + "61bc6649" + "0100000000000000" + "00000000000000000000ffff0a000001" + "208d"
+                        + "00000000" + "0904000000000000" + "20010db8000000000000000000000001" + "479d",
+                "03"
+                        + "61bc6649" + "01" + "01" + "04" + "0a000001" + "208d"
+                        + "00000000" + "fd0904" + "04" + "20" + torV3 + "2382"
+                        // I2P, which PeerAddress parses without an address
+                        + "61bc6649" + "00" + "05" + "20" + repeat("11", 32) + "0000"
+        };
+        BitcoinSerializer lazy = MAINNET.getSerializer(true).withParseLazy(true);
+        for (int i = 0; i < commands.length; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            lazy.serialize(commands[i], Utils.HEX.decode(payloads[i]), out);
+            AddressMessage message = (AddressMessage) lazy.deserialize(ByteBuffer.wrap(out.toByteArray()));
+            List<CompactPeerAddress> compact = message.getCompactAddresses();
+            assertFalse(message.isParsed());
+            List<PeerAddress> parsed = message.getAddresses();
+            assertEquals(0x4966bc61L, compact.get(0).getTime());
+            assertEquals(new InetSocketAddress("10.0.0.1", 8333), compact.get(0).toSocketAddress());
+            assertEquals(0x409, compact.get(1).getServices());
+            for (int j = 0; j < 2; j++) {
+                assertEquals(parsed.get(j).toCompact(), compact.get(j));
+                assertEquals(parsed.get(j).toSocketAddress(), compact.get(j).toSocketAddress());
+            }
+            // Writing the entries back reproduces the payload
+            PayloadWriter writer = new PayloadWriter(64);
+            writer.writeVarInt(compact.size());
+            for (CompactPeerAddress address : compact)
+                address.write(writer, i + 1);
+            assertEquals(payloads[i], Utils.HEX.encode(writer.toByteArray()));
+        }
+    }
+
+    @Test
+    public void unknownNetworksAreSkipped() throws Exception {
+        String torV3 = repeat("5a", 32);
+        String payload = "03"
+                + "61bc6649" + "01" + "01" + "04" + "0a000001" + "208d"
+                // A network we don't know with a 300 byte address
+                + "61bc6649" + "00" + "2a" + "fd2c01" + repeat("ab", 300) + "1234"
+                + "00000000" + "fd0904" + "04" + "20" + torV3 + "2382";
+        BitcoinSerializer lazy = MAINNET.getSerializer(true).withParseLazy(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        lazy.serialize("addrv2", Utils.HEX.decode(payload), out);
+        AddressMessage message = (AddressMessage) lazy.deserialize(ByteBuffer.wrap(out.toByteArray()));
+        List<CompactPeerAddress> compact = message.getCompactAddresses();
+        assertEquals(2, compact.size());
+        assertEquals(new InetSocketAddress("10.0.0.1", 8333), compact.get(0).toSocketAddress());
+        assertEquals(CompactPeerAddress.NETWORK_TORV3, compact.get(1).getNetworkId());
+        assertEquals(9090, compact.get(1).getPort());
+
+        // Read on its own the entry comes back as null, with all of it consumed
+        PayloadReader reader = new PayloadReader(ByteBuffer.wrap(Utils.HEX.decode(
+                "61bc6649" + "00" + "2a" + "fd0002" + repeat("ab", 512) + "1234")));
+        assertNull(CompactPeerAddress.read(reader, 2));
+        assertFalse(reader.hasRemaining());
+
+        // Longer than BIP 155 allows
+        reader = new PayloadReader(ByteBuffer.wrap(Utils.HEX.decode(
+                "61bc6649" + "00" + "2a" + "fd0102" + repeat("ab", 513) + "1234")));
+        try {
+            CompactPeerAddress.read(reader, 2);
+            fail();
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++)
+            sb.append(s);
+        return sb.toString();
+    }
+}
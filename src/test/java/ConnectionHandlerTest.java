@@ -0,0 +1,288 @@
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelectionKey;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ConnectionHandlerTest {
+
+    @Test
+    public void failedReadReturnsBufferToPool() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel peer = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel channel = server.accept();
+        Selector selector = Selector.open();
+        try {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            ByteBufferPool pool = new ByteBufferPool(4096, 4, false);
+            ConnectionHandler handler = new ConnectionHandler(new FailingConnection(), key, pool);
+            key.attach(handler);
+
+            peer.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            assertEquals(1, selector.select(5000));
+            ConnectionHandler.handleKey(selector.selectedKeys().iterator().next());
+
+            // receiveBytes threw, which closes the connection and hands the read buffer back
+            assertFalse(channel.isOpen());
+            assertEquals(1, pool.getPooledCount());
+        } finally {
+            selector.close();
+            peer.close();
+            channel.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void partialGatheringWritesCompleteFuturesInOrder() throws Exception {
+        ThrottledChannel channel = new ThrottledChannel();
+        Selector selector = Selector.open();
+        try {
+            WritableKey key = new WritableKey(channel, selector);
+            ConnectionHandler handler = new ConnectionHandler(new FailingConnection(), key, new ByteBufferPool(4096, 4, false));
+            key.attach(handler);
+            handler.setWriteBatchSize(2);
+
+            // The socket takes nothing at first, so all five messages are queued
+            final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+            for (int i = 0; i < 5; i++) {
+                final int message = i;
+                ListenableFuture future = handler.writeBuffer(ByteBuffer.wrap(new byte[] {(byte) i, (byte) i, (byte) i, (byte) i}));
+                future.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        completed.add(message);
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+            assertTrue(completed.isEmpty());
+            assertTrue((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+
+            // From now on every write takes 6 bytes, one and a half messages
+            channel.bytesPerWrite = 6;
+            ConnectionHandler.handleKey(key);
+            assertEquals(Arrays.asList(0), completed);
+            ConnectionHandler.handleKey(key);
+            assertEquals(Arrays.asList(0, 1, 2), completed);
+            ConnectionHandler.handleKey(key);
+            assertEquals(Arrays.asList(0, 1, 2, 3), completed);
+            ConnectionHandler.handleKey(key);
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4), completed);
+
+            // Never more than two messages per gathering write, and the bytes went out in queue order
+            assertEquals(Arrays.asList(2, 2, 2, 1), channel.batchSizes);
+            assertArrayEquals(new byte[] {0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4},
+                    channel.written.toByteArray());
+            assertEquals(0, key.interestOps() & SelectionKey.OP_WRITE);
+        } finally {
+            selector.close();
+        }
+    }
+
+    // A socket which takes at most bytesPerWrite bytes per write, recording how many buffers each gathering write gets
+    private static class ThrottledChannel extends SocketChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final List<Integer> batchSizes = new ArrayList<>();
+        int bytesPerWrite = 0;
+
+        ThrottledChannel() {
+            super(SelectorProvider.provider());
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return transfer(new ByteBuffer[] {src}, 0, 1);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            batchSizes.add(length);
+            return transfer(srcs, offset, length);
+        }
+
+        private int transfer(ByteBuffer[] srcs, int offset, int length) {
+            int budget = bytesPerWrite;
+            for (int i = offset; i < offset + length && budget > 0; i++) {
+                while (srcs[i].hasRemaining() && budget > 0) {
+                    written.write(srcs[i].get());
+                    budget--;
+                }
+            }
+            return bytesPerWrite - budget;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return 0;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            return 0;
+        }
+
+        @Override
+        public SocketChannel bind(SocketAddress local) {
+            return this;
+        }
+
+        @Override
+        public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+            return this;
+        }
+
+        @Override
+        public <T> T getOption(SocketOption<T> name) {
+            return null;
+        }
+
+        @Override
+        public Set<SocketOption<?>> supportedOptions() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public SocketChannel shutdownInput() {
+            return this;
+        }
+
+        @Override
+        public SocketChannel shutdownOutput() {
+            return this;
+        }
+
+        @Override
+        public Socket socket() {
+            return null;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isConnectionPending() {
+            return false;
+        }
+
+        @Override
+        public boolean connect(SocketAddress remote) {
+            return true;
+        }
+
+        @Override
+        public boolean finishConnect() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        protected void implCloseSelectableChannel() {
+        }
+
+        @Override
+        protected void implConfigureBlocking(boolean block) {
+        }
+    }
+
+    // A key which is always ready for writing
+    private static class WritableKey extends AbstractSelectionKey {
+        private final SelectableChannel channel;
+        private final Selector selector;
+        private int interestOps = SelectionKey.OP_READ;
+
+        WritableKey(SelectableChannel channel, Selector selector) {
+            this.channel = channel;
+            this.selector = selector;
+        }
+
+        @Override
+        public SelectableChannel channel() {
+            return channel;
+        }
+
+        @Override
+        public Selector selector() {
+            return selector;
+        }
+
+        @Override
+        public int interestOps() {
+            return interestOps;
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops) {
+            interestOps = ops;
+            return this;
+        }
+
+        @Override
+        public int readyOps() {
+            return SelectionKey.OP_WRITE;
+        }
+    }
+
+    private static class FailingConnection implements StreamConnection {
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            throw new IllegalStateException("bad bytes");
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public void writabilityChanged(boolean writable) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 0;
+        }
+    }
+}
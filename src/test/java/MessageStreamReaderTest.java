@@ -0,0 +1,46 @@
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MessageStreamReaderTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    @Test
+    public void readsMessagesAcrossBufferBoundaries() throws Exception {
+        BitcoinSerializer serializer = MAINNET.getSerializer(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] {1, 2, 3}); // garbage before the first message is skipped
+        serializer.serialize(new Ping(1), out);
+        byte[] large = new byte[1000];
+        Arrays.fill(large, (byte) 7);
+        serializer.serialize("foo", large, out);
+        serializer.serialize(new Ping(2), out);
+
+        // A buffer this small forces both refills and chunked reassembly of the large message
+        MessageStreamReader reader = new MessageStreamReader(serializer,
+                Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), 64);
+        assertEquals(1, ((Ping) reader.next()).getNonce());
+        // Reassembled, verified and dropped rather than joined into an array
+        assertEquals("Unknown message [foo]", reader.next().toString());
+        assertEquals(2, ((Ping) reader.next()).getNonce());
+        assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncatedMessageFails() throws Exception {
+        BitcoinSerializer serializer = MAINNET.getSerializer(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(1), out);
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+
+        MessageStreamReader reader = new MessageStreamReader(serializer, new ByteArrayInputStream(bytes));
+        reader.hasNext();
+    }
+}
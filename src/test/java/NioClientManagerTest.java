@@ -0,0 +1,126 @@
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioClientManagerTest {
+
+    @Test
+    public void dyingSecondaryLoopFailsPendingAndLaterConnects() throws Exception {
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ServerSocket stalled = stalledServer();
+        NioClientManager manager = new NioClientManager(2);
+        manager.startAsync().awaitRunning();
+        try {
+            // Loads even out between the two loops: loop 0, loop 1, loop 0, then loop 1 again
+            TestConnection first = new TestConnection(false);
+            manager.openConnection(server.getLocalSocketAddress(), first).get(5, TimeUnit.SECONDS);
+            Socket firstAccepted = server.accept();
+            TestConnection dying = new TestConnection(true);
+            manager.openConnection(server.getLocalSocketAddress(), dying).get(5, TimeUnit.SECONDS);
+            Socket dyingAccepted = server.accept();
+            TestConnection third = new TestConnection(false);
+            manager.openConnection(server.getLocalSocketAddress(), third).get(5, TimeUnit.SECONDS);
+            Socket thirdAccepted = server.accept();
+            TestConnection pending = new TestConnection(false);
+            ListenableFuture<SocketAddress> pendingFuture = manager.openConnection(stalled.getLocalSocketAddress(), pending);
+
+            // Loop 1 dies handling these bytes
+            dyingAccepted.getOutputStream().write(1);
+
+            // The connect it was still working on fails instead of hanging, and loop 0 stops along with it
+            try {
+                pendingFuture.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                // expected
+            }
+            assertTrue(pending.closed.await(5, TimeUnit.SECONDS));
+            assertTrue(first.closed.await(5, TimeUnit.SECONDS));
+            assertTrue(third.closed.await(5, TimeUnit.SECONDS));
+            manager.awaitTerminated(5, TimeUnit.SECONDS);
+
+            // Nothing is handed to a dead loop any more
+            try {
+                manager.openConnection(server.getLocalSocketAddress(), new TestConnection(false));
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            firstAccepted.close();
+            dyingAccepted.close();
+            thirdAccepted.close();
+        } finally {
+            manager.stopAsync();
+            server.close();
+            stalled.close();
+        }
+    }
+
+    /**
+     * Returns a server which never accepts and whose backlog is already full, so connects to it stay pending.
+     */
+    static ServerSocket stalledServer() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        for (int i = 0; i < 4; i++) {
+            try {
+                new Socket().connect(server.getLocalSocketAddress(), 200);
+            } catch (SocketTimeoutException e) {
+                return server;
+            }
+        }
+        server.close();
+        throw new IllegalStateException("Backlog never filled up");
+    }
+
+    static class TestConnection implements StreamConnection {
+        final CountDownLatch closed = new CountDownLatch(1);
+        private final boolean killLoop;
+
+        TestConnection(boolean killLoop) {
+            this.killLoop = killLoop;
+        }
+
+        @Override
+        public void connectionClosed() {
+            closed.countDown();
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            // An Error gets past the per-connection error handling and takes the whole loop down
+            if (killLoop)
+                throw new AssertionError("loop dies");
+            buff.position(buff.limit());
+            return buff.position();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public void writabilityChanged(boolean writable) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import com.google.common.util.concurrent.Service;
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioServerTest {
+
+    @Test
+    public void failingWorkerShutsDownServer() throws Exception {
+        ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        InetSocketAddress address = (InetSocketAddress) probe.getLocalSocketAddress();
+        probe.close();
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new FailingConnection();
+            }
+        }, address, 1, 0);
+        server.startAsync().awaitRunning();
+
+        // The worker dies registering the first connection, which takes the acceptor down with it
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        socket.setSoTimeout(5000);
+        server.awaitTerminated(5, TimeUnit.SECONDS);
+        assertEquals(Service.State.TERMINATED, server.state());
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+
+        // Nobody is left accepting, so new peers are refused rather than queued for a dead worker
+        try {
+            new Socket(address.getAddress(), address.getPort()).close();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static class FailingConnection implements StreamConnection {
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+            throw new IllegalStateException("worker fails");
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            return 0;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public void writabilityChanged(boolean writable) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 0;
+        }
+    }
+}
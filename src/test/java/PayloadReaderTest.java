@@ -0,0 +1,43 @@
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PayloadReaderTest {
+
+    @Test
+    public void readsFieldsStraddlingSegments() throws Exception {
+        byte[] bytes = {
+                (byte) 0xfd, 0x34, 0x12,                        // varint 0x1234
+                0x78, 0x56, 0x34, 0x12,                         // uint32 0x12345678
+                0x08, 0x07, 0x06, 0x05, 0x04, 0x03, 0x02, 0x01, // int64 0x0102030405060708
+                0x20, (byte) 0x8d,                              // port 8333
+                1, 2, 3
+        };
+        // Split at every possible pair of points, so each field gets read both whole and across segments
+        for (int a = 0; a <= bytes.length; a++) {
+            for (int b = a; b <= bytes.length; b++) {
+                PayloadReader reader = new PayloadReader(ByteBuffer.wrap(bytes, 0, a),
+                        ByteBuffer.wrap(bytes, a, b - a), ByteBuffer.allocateDirect(0),
+                        ByteBuffer.wrap(bytes, b, bytes.length - b));
+                VarInt varInt = reader.readVarInt();
+                assertEquals(0x1234, varInt.longValue());
+                assertEquals(3, varInt.getOriginalSizeInBytes());
+                assertEquals(0x12345678L, reader.readUint32());
+                assertEquals(0x0102030405060708L, reader.readInt64());
+                assertEquals(8333, reader.readUint16BE());
+                reader.skip(1);
+                assertArrayEquals(new byte[] {2, 3}, reader.readBytes(2));
+                assertEquals(bytes.length, reader.position());
+                assertFalse(reader.hasRemaining());
+            }
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void runningOutFails() throws Exception {
+        new PayloadReader(ByteBuffer.wrap(new byte[] {1, 2, 3})).readUint32();
+    }
+}
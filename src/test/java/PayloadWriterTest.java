@@ -0,0 +1,32 @@
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PayloadWriterTest {
+
+    @Test
+    public void matchesStreamEncoding() throws Exception {
+        long[] values = {0, 252, 253, 0xFFFF, 0x10000, 0xFFFFFFFFL, 0x100000000L, -1};
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        // A tiny big endian buffer, so the writer has to grow it and mustn't depend on its byte order
+        PayloadWriter writer = new PayloadWriter(ByteBuffer.allocate(3));
+        for (long value : values) {
+            expected.write(new VarInt(value).encode());
+            writer.writeVarInt(value);
+            Utils.uint32ToByteStreamLE(value, expected);
+            writer.writeUint32(value);
+            Utils.int64ToByteStreamLE(value, expected);
+            writer.writeInt64(value);
+            Utils.uint16ToByteStreamBE((int) value & 0xFFFF, expected);
+            writer.writeUint16BE((int) value);
+        }
+        writer.asOutputStream().write(new byte[] {1, 2, 3});
+        expected.write(new byte[] {1, 2, 3});
+        assertArrayEquals(expected.toByteArray(), writer.toByteArray());
+        assertEquals(expected.size(), writer.position());
+    }
+}
@@ -0,0 +1,218 @@
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+    // A ping frame is a 24 byte header followed by an 8 byte nonce
+    private static final int PING_FRAME_SIZE = 32;
+
+    @Test
+    public void framesCompletedOutOfOrderAreDeliveredInOrder() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        CollectingExecutor executor = new CollectingExecutor();
+        handler.setDecodeExecutor(executor);
+        assertEquals(5 * PING_FRAME_SIZE, handler.receiveBytes(ByteBuffer.wrap(pings(1, 2, 3, 4, 5))));
+        assertEquals(5, executor.tasks.size());
+
+        // Each frame is decoded on a thread of its own, newest first. Nothing can be delivered before the oldest one.
+        for (int i = executor.tasks.size() - 1; i >= 0; i--) {
+            Thread thread = new Thread(executor.tasks.get(i));
+            thread.start();
+            thread.join();
+            if (i > 0)
+                assertTrue(handler.received.isEmpty());
+        }
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), handler.received);
+
+        // And the same with a pool racing through many frames
+        RecordingHandler racing = new RecordingHandler();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        racing.setDecodeExecutor(pool);
+        long[] nonces = new long[500];
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < nonces.length; i++) {
+            nonces[i] = i;
+            expected.add((long) i);
+        }
+        racing.receiveBytes(ByteBuffer.wrap(pings(nonces)));
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(expected, racing.received);
+        assertFalse(racing.target.closed);
+    }
+
+    @Test
+    public void everythingAfterAFailedFrameIsDropped() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        CollectingExecutor executor = new CollectingExecutor();
+        handler.setDecodeExecutor(executor);
+        byte[] bytes = pings(1, 2, 3);
+        // Corrupt the checksum of the second frame
+        bytes[PING_FRAME_SIZE + 20] ^= 1;
+        handler.receiveBytes(ByteBuffer.wrap(bytes));
+        for (Runnable task : executor.tasks)
+            task.run();
+        assertEquals(Collections.singletonList(1L), handler.received);
+        assertTrue(handler.target.closed);
+    }
+
+    @Test
+    public void rejectedFrameFailsTheConnection() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        handler.setDecodeExecutor(new Executor() {
+            private boolean first = true;
+
+            @Override
+            public void execute(Runnable command) {
+                if (!first)
+                    throw new RejectedExecutionException("saturated");
+                first = false;
+                command.run();
+            }
+        });
+        handler.receiveBytes(ByteBuffer.wrap(pings(1, 2, 3)));
+        assertEquals(Collections.singletonList(1L), handler.received);
+        assertTrue(handler.target.closed);
+    }
+
+    @Test
+    public void readsPauseWhileTheDecodeBacklogIsFull() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        CollectingExecutor executor = new CollectingExecutor();
+        // Room for two 8 byte payloads, reads resume once at most one is left
+        handler.setDecodeExecutor(executor, 20);
+        handler.receiveBytes(ByteBuffer.wrap(pings(1, 2)));
+        assertTrue(handler.target.pauses.isEmpty());
+        handler.receiveBytes(ByteBuffer.wrap(pings(3)));
+        assertEquals(Collections.singletonList(true), handler.target.pauses);
+
+        executor.tasks.get(0).run();
+        assertEquals(Collections.singletonList(true), handler.target.pauses);
+        executor.tasks.get(1).run();
+        assertEquals(Arrays.asList(true, false), handler.target.pauses);
+        executor.tasks.get(2).run();
+        assertEquals(Arrays.asList(true, false), handler.target.pauses);
+        assertEquals(Arrays.asList(1L, 2L, 3L), handler.received);
+    }
+
+    @Test
+    public void disallowedCommandsAreSkippedAcrossReads() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        handler.setCommandAllowlist("ping");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MAINNET.getDefaultSerializer().serialize("foo", new byte[100], out);
+        out.write(pings(7));
+        // The unknown frame is larger than the read buffer and arrives a few bytes at a time
+        feed(handler, out.toByteArray(), 10);
+        assertEquals(Collections.singletonList(7L), handler.received);
+        assertFalse(handler.target.closed);
+
+        // A skipped command still has to stay within its size limit
+        out.reset();
+        MAINNET.getDefaultSerializer().serialize("pong", new byte[9], out);
+        assertEquals(-1, handler.receiveBytes(ByteBuffer.wrap(out.toByteArray())));
+        assertTrue(handler.target.closed);
+        assertEquals(Collections.singletonList(7L), handler.received);
+    }
+
+    // Hands bytes over the way ConnectionHandler does, at most chunkSize at a time into a 64 byte read buffer
+    private static void feed(PeerSocketHandler handler, byte[] bytes, int chunkSize) {
+        ByteBuffer buff = ByteBuffer.allocate(64);
+        int offset = 0;
+        while (offset < bytes.length) {
+            int n = Math.min(Math.min(chunkSize, buff.remaining()), bytes.length - offset);
+            buff.put(bytes, offset, n);
+            offset += n;
+            ((Buffer) buff).flip();
+            int consumed = handler.receiveBytes(buff);
+            assertEquals(buff.position(), consumed);
+            buff.compact();
+        }
+        assertEquals(0, buff.position());
+    }
+
+    static byte[] pings(long... nonces) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long nonce : nonces)
+            MAINNET.getDefaultSerializer().serialize(new Ping(nonce), out);
+        return out.toByteArray();
+    }
+
+    // Holds on to every task until the test runs it
+    static class CollectingExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    }
+
+    static class RecordingWriteTarget implements MessageWriteTarget {
+        final List<Boolean> pauses = Collections.synchronizedList(new ArrayList<Boolean>());
+        volatile boolean closed;
+
+        @Override
+        public ListenableFuture writeBytes(byte[] message) {
+            return Futures.immediateFuture(null);
+        }
+
+        @Override
+        public ListenableFuture writeBuffer(ByteBuffer buffer) {
+            return Futures.immediateFuture(null);
+        }
+
+        @Override
+        public void closeConnection() {
+            closed = true;
+        }
+
+        @Override
+        public void setReadsPaused(boolean paused) {
+            pauses.add(paused);
+        }
+    }
+
+    // Records the nonce of every ping it is handed
+    static class RecordingHandler extends PeerSocketHandler {
+        final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+        final RecordingWriteTarget target = new RecordingWriteTarget();
+
+        RecordingHandler() {
+            super(MAINNET, new InetSocketAddress(InetAddress.getLoopbackAddress(), 8333));
+            setWriteTarget(target);
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+            received.add(((Ping) m).getNonce());
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Service;
+import org.bitcoin.core.*;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SharedClientManagerTest {
+
+    @Test
+    public void lastReleaseStopsTheManager() throws Exception {
+        SharedClientManager shared = new SharedClientManager();
+        ClientConnectionManager first = shared.retain();
+        assertSame(first, shared.retain());
+        assertEquals(2, shared.getRefCount());
+        assertTrue(first.isRunning());
+
+        shared.release();
+        assertEquals(1, shared.getRefCount());
+        assertTrue(first.isRunning());
+        shared.release();
+        assertEquals(0, shared.getRefCount());
+        first.awaitTerminated(5, TimeUnit.SECONDS);
+
+        // A stopped manager can't be restarted, so the next reference gets a fresh one
+        ClientConnectionManager second = shared.retain();
+        assertNotSame(first, second);
+        assertTrue(second.isRunning());
+        assertEquals(Service.State.TERMINATED, first.state());
+        shared.release();
+        second.awaitTerminated(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void connectTimeoutFailsTheConnect() throws Exception {
+        // Connects to a server which never gets to accept them stay pending until the timeout
+        ServerSocket stalled = NioClientManagerTest.stalledServer();
+        try {
+            SharedClientManager shared = new SharedClientManager();
+            ClientConnectionManager manager = shared.retain();
+            NioClientManagerTest.TestConnection connection = new NioClientManagerTest.TestConnection(false);
+            ListenableFuture<SocketAddress> future = manager.openConnection(stalled.getLocalSocketAddress(), connection, 200);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SocketTimeoutException);
+            }
+            assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+
+            // A client's timed out connect gives its reference back
+            NioClientManagerTest.TestConnection clientConnection = new NioClientManagerTest.TestConnection(false);
+            new NioClient(stalled.getLocalSocketAddress(), clientConnection, 200, shared);
+            assertTrue(clientConnection.closed.await(5, TimeUnit.SECONDS));
+            assertEquals(1, shared.getRefCount());
+            shared.release();
+            manager.awaitTerminated(5, TimeUnit.SECONDS);
+        } finally {
+            stalled.close();
+        }
+    }
+}
@@ -36,6 +36,11 @@ public class StreamConnectionImpl implements StreamConnection {
         //System.out.println("setWriteTarget called");
     }
 
+    @Override
+    public void writabilityChanged(boolean writable) {
+        System.out.println("writabilityChanged called " + writable);
+    }
+
     @Override
     public int getMaxMessageSize() {
         //System.out.println("getMaxMessageSize called");